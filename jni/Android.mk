@@ -191,6 +191,8 @@ LOCAL_PATH := $(BASE_PATH)
 LOCAL_MODULE := pocketsphinx_jni
 
 LOCAL_LDLIBS := -llog
+# Lets sphinxbase read models mapped from the APK, see pocketsphinx_android.i
+LOCAL_LDFLAGS += -Wl,--wrap=fopen
 
 LOCAL_STATIC_LIBRARIES := \
   pocketsphinx \
@@ -0,0 +1,29 @@
+# Build the native component of the PocketSphinx library for the build host,
+# so that benchmarks can run on a development machine. The module
+# definitions are taken from Android.mk, the NDK build macros it uses are
+# emulated by the makefiles in host/.
+#
+#   make -f jni/Host.mk [JAVA_HOME=...]
+#
+# Produces build/host/libpocketsphinx_jni.so. Run from the project root.
+
+HOST_PATH := jni/host
+HOST_OUT := build/host
+JAVA_HOME ?= $(shell dirname $$(dirname $$(readlink -f $$(which javac))))
+
+HOST_CFLAGS := -O2 -fPIC -D_GNU_SOURCE \
+  -I$(JAVA_HOME)/include -I$(JAVA_HOME)/include/linux
+
+my-dir = jni
+CLEAR_VARS := $(HOST_PATH)/clear-vars.mk
+BUILD_STATIC_LIBRARY := $(HOST_PATH)/static-library.mk
+BUILD_SHARED_LIBRARY := $(HOST_PATH)/shared-library.mk
+
+all: $(HOST_OUT)/libpocketsphinx_jni.so
+
+clean:
+	rm -rf $(HOST_OUT)
+
+.PHONY: all clean
+
+include jni/Android.mk
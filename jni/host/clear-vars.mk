@@ -0,0 +1,10 @@
+# Host replacement of $(CLEAR_VARS).
+LOCAL_MODULE :=
+LOCAL_SRC_FILES :=
+LOCAL_C_INCLUDES :=
+LOCAL_CFLAGS :=
+LOCAL_LDFLAGS :=
+LOCAL_LDLIBS :=
+LOCAL_ARM_MODE :=
+LOCAL_STATIC_LIBRARIES :=
+LOCAL_WHOLE_STATIC_LIBRARIES :=
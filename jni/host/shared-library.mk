@@ -0,0 +1,12 @@
+# Host replacement of $(BUILD_SHARED_LIBRARY). LOCAL_LDLIBS name Android
+# system libraries and are not used.
+host_whole := $(patsubst %,$(HOST_OUT)/lib%.a,$(LOCAL_WHOLE_STATIC_LIBRARIES))
+host_static := $(patsubst %,$(HOST_OUT)/lib%.a,$(LOCAL_STATIC_LIBRARIES))
+
+$(HOST_OUT)/lib$(LOCAL_MODULE).so: HOST_WHOLE := $(host_whole)
+$(HOST_OUT)/lib$(LOCAL_MODULE).so: HOST_STATIC := $(host_static)
+$(HOST_OUT)/lib$(LOCAL_MODULE).so: HOST_LDFLAGS := $(LOCAL_LDFLAGS)
+$(HOST_OUT)/lib$(LOCAL_MODULE).so: $(host_whole) $(host_static)
+	$(CC) -shared -o $@ $(HOST_LDFLAGS) \
+	  -Wl,--whole-archive $(HOST_WHOLE) -Wl,--no-whole-archive \
+	  $(HOST_STATIC) -lm -lpthread
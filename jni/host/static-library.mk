@@ -0,0 +1,14 @@
+# Host replacement of $(BUILD_STATIC_LIBRARY). The .arm suffix only selects
+# the instruction set on Android and is dropped, so is ANDROID_NDK which
+# would route sphinxbase logging to liblog.
+host_objs := $(addprefix $(HOST_OUT)/obj/$(LOCAL_MODULE)/, \
+  $(patsubst %.c,%.o,$(patsubst %.arm,%,$(LOCAL_SRC_FILES))))
+
+$(host_objs): HOST_MODULE_CFLAGS := \
+  $(filter-out -DANDROID_NDK,$(LOCAL_CFLAGS)) $(addprefix -I,$(LOCAL_C_INCLUDES))
+$(host_objs): $(HOST_OUT)/obj/$(LOCAL_MODULE)/%.o: $(LOCAL_PATH)/%.c
+	@mkdir -p $(dir $@)
+	$(CC) $(HOST_CFLAGS) $(HOST_MODULE_CFLAGS) -c -o $@ $<
+
+$(HOST_OUT)/lib$(LOCAL_MODULE).a: $(host_objs)
+	$(AR) rcs $@ $^
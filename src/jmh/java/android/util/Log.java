@@ -0,0 +1,41 @@
+package android.util;
+
+/**
+ * Host replacement for the Android logger, whose methods only throw in the
+ * SDK stub library. Found before android.jar on the classpath of the jmh
+ * source set, messages go to standard error.
+ */
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int i(String tag, String msg) {
+        return println("I", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg) {
+        return println("W", tag, msg, null);
+    }
+
+    public static int w(String tag, String msg, Throwable tr) {
+        return println("W", tag, msg, tr);
+    }
+
+    public static int e(String tag, String msg) {
+        return println("E", tag, msg, null);
+    }
+
+    public static int e(String tag, String msg, Throwable tr) {
+        return println("E", tag, msg, tr);
+    }
+
+    private static int println(String level, String tag, String msg, Throwable tr) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        if (null != tr)
+            tr.printStackTrace();
+        return 0;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,72 @@
+package edu.cmu.pocketsphinx;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Extraction of a single asset: copy with checksum in one pass. The
+ * asset manager is not available on the host, a file channel stands in
+ * for the asset stream.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class AssetsBenchmark {
+
+    @Param({"1048576", "16777216"})
+    public int size;
+
+    private File source;
+    private File dest;
+
+    @Setup
+    public void setup() throws IOException {
+        source = File.createTempFile("asset", ".bin");
+        dest = File.createTempFile("asset", ".out");
+        byte[] chunk = new byte[65536];
+        new Random(size).nextBytes(chunk);
+        FileOutputStream stream = new FileOutputStream(source);
+        try {
+            for (int n = 0; n < size; n += chunk.length)
+                stream.write(chunk, 0, Math.min(chunk.length, size - n));
+        } finally {
+            stream.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        source.delete();
+        dest.delete();
+    }
+
+    @Benchmark
+    public long copy() throws IOException, NoSuchAlgorithmException {
+        MessageDigest digest = MessageDigest.getInstance("MD5");
+        return Assets.copyChannel(new FileInputStream(source).getChannel(), dest, digest);
+    }
+}
+
+/* vim: set ts=4 sw=4: */
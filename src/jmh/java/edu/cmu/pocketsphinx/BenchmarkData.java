@@ -0,0 +1,196 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Models and audio shared by the benchmarks, see src/jmh/data/README.
+ */
+final class BenchmarkData {
+
+    static {
+        System.loadLibrary("pocketsphinx_jni");
+    }
+
+    private static final String PREFIX = "pocketsphinx.bench.";
+
+    static final File DATA_DIR =
+        new File(System.getProperty(PREFIX + "data", "src/jmh/data"));
+    static final File SPHINX_DIR =
+        new File(System.getProperty(PREFIX + "sphinx", ".."));
+
+    private static final Properties PROPERTIES = loadProperties();
+    private static List<Utterance> corpus;
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * Transcribed utterance of the corpus.
+     */
+    static final class Utterance {
+        final File file;
+        final String transcription;
+        final short[] samples;
+
+        Utterance(File file, String transcription, short[] samples) {
+            this.file = file;
+            this.transcription = transcription;
+            this.samples = samples;
+        }
+    }
+
+    /**
+     * Returns model file configured by key, see bench.properties.
+     */
+    static File model(String key) {
+        String path = System.getProperty(PREFIX + key, PROPERTIES.getProperty(key));
+        if (null == path)
+            throw new IllegalArgumentException("no model configured for " + key);
+        File file = new File(path);
+        return file.isAbsolute() ? file : new File(SPHINX_DIR, path);
+    }
+
+    static Config config() {
+        Config config = Decoder.defaultConfig();
+        config.setString("-hmm", model("hmm").getPath());
+        config.setString("-dict", model("dict").getPath());
+        config.setString("-logfn", "/dev/null");
+        return config;
+    }
+
+    /**
+     * Adds search of the given type to the decoder, the search is named
+     * after its type.
+     *
+     * @param type one of ngram, jsgf, kws and allphone
+     */
+    static void addSearch(Decoder decoder, String type) {
+        if ("ngram".equals(type))
+            decoder.setLmFile(type, model("lm").getPath());
+        else if ("jsgf".equals(type))
+            decoder.setJsgfFile(type, new File(DATA_DIR, "goforward.gram").getPath());
+        else if ("kws".equals(type))
+            decoder.setKws(type, new File(DATA_DIR, "keyphrases.list").getPath());
+        else if ("allphone".equals(type))
+            decoder.setAllphoneFile(type, model("phonelm").getPath());
+        else
+            throw new IllegalArgumentException("unknown search type " + type);
+    }
+
+    /**
+     * Returns utterances listed in corpus.txt. Audio is read once and
+     * shared, callers must not modify it.
+     */
+    static synchronized List<Utterance> corpus() {
+        if (null != corpus)
+            return corpus;
+
+        List<Utterance> utterances = new ArrayList<Utterance>();
+        File list = new File(DATA_DIR, "corpus.txt");
+        try {
+            BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(list), "UTF-8"));
+            try {
+                String line;
+                while (null != (line = reader.readLine())) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#"))
+                        continue;
+                    String[] fields = line.split("\t", 2);
+                    File file = new File(fields[0]);
+                    if (!file.isAbsolute())
+                        file = new File(SPHINX_DIR, fields[0]);
+                    utterances.add(new Utterance(
+                        file, fields.length > 1 ? fields[1].trim() : "", readAudio(file)));
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot read corpus " + list, e);
+        }
+        if (utterances.isEmpty())
+            throw new IllegalStateException(list + " lists no audio");
+        corpus = Collections.unmodifiableList(utterances);
+        return corpus;
+    }
+
+    /**
+     * Reads 16-bit mono audio from a raw or WAV file.
+     */
+    static short[] readAudio(File file) throws IOException {
+        ByteBuffer data;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() >= 12 && data.getInt(0) == 0x46464952) // RIFF
+            data = wavData(file, data);
+
+        short[] samples = new short[data.remaining() / 2];
+        data.asShortBuffer().get(samples);
+        return samples;
+    }
+
+    private static ByteBuffer wavData(File file, ByteBuffer wav) throws IOException {
+        wav.position(12);
+        while (wav.remaining() >= 8) {
+            int id = wav.getInt();
+            int size = wav.getInt();
+            if (size < 0 || size > wav.remaining())
+                size = wav.remaining();
+            if (id == 0x20746d66) { // fmt
+                int encoding = wav.getShort(wav.position()) & 0xffff;
+                int channels = wav.getShort(wav.position() + 2) & 0xffff;
+                int bits = wav.getShort(wav.position() + 14) & 0xffff;
+                if (1 != encoding || 1 != channels || 16 != bits)
+                    throw new IOException(format(
+                        "%s: expected 16-bit mono PCM, got encoding %d, %d channels, %d bits",
+                        file, encoding, channels, bits));
+            } else if (id == 0x61746164) { // data
+                ByteBuffer data = wav.slice().order(ByteOrder.LITTLE_ENDIAN);
+                data.limit(size);
+                return data;
+            }
+            wav.position(wav.position() + size + (size & 1));
+        }
+        throw new IOException(file + ": no data chunk");
+    }
+
+    private static Properties loadProperties() {
+        Properties properties = new Properties();
+        File file = new File(DATA_DIR, "bench.properties");
+        try {
+            InputStream stream = new FileInputStream(file);
+            try {
+                properties.load(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("cannot read " + file, e);
+        }
+        return properties;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,74 @@
+package edu.cmu.pocketsphinx;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to decode the whole corpus with each search type, fed in chunks
+ * the way the recognizer feeds microphone audio. Divide by the corpus
+ * duration for the real time factor.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+
+    @Param({"ngram", "jsgf", "kws", "allphone"})
+    public String search;
+
+    @Param({"2048"})
+    public int chunkSize;
+
+    private Decoder decoder;
+    private List<BenchmarkData.Utterance> corpus;
+    private short[] buffer;
+
+    @Setup
+    public void setup() {
+        corpus = BenchmarkData.corpus();
+        decoder = new Decoder(BenchmarkData.config());
+        BenchmarkData.addSearch(decoder, search);
+        decoder.setSearch(search);
+        buffer = new short[chunkSize];
+    }
+
+    @TearDown
+    public void tearDown() {
+        decoder.delete();
+    }
+
+    @Benchmark
+    public int processRaw() {
+        int frames = 0;
+        for (BenchmarkData.Utterance utterance : corpus) {
+            short[] samples = utterance.samples;
+            decoder.startUtt();
+            for (int pos = 0; pos < samples.length; pos += chunkSize) {
+                int n = Math.min(chunkSize, samples.length - pos);
+                System.arraycopy(samples, pos, buffer, 0, n);
+                decoder.processRaw(buffer, n, false, false);
+            }
+            decoder.endUtt();
+            frames += decoder.nFrames();
+        }
+        return frames;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
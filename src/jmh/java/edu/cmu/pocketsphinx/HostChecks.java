@@ -0,0 +1,216 @@
+package edu.cmu.pocketsphinx;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks of recognizer behavior run on the build host against the native
+ * library, with the models and corpus of the benchmarks. Exits with a
+ * non-zero status if any check fails.
+ */
+public class HostChecks {
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private interface Check {
+        void run() throws Exception;
+    }
+
+    public static void main(String[] args) {
+        SpeechRecognizer.DEBUG_MSGS_ALLOWED = false;
+        Map<String, Check> checks = new LinkedHashMap<String, Check>();
+        checks.put("batchRecoversFromBadItem", new Check() {
+            public void run() throws Exception {
+                batchRecoversFromBadItem();
+            }
+        });
+        checks.put("recognitionLoopDoesNotAllocate", new Check() {
+            public void run() throws Exception {
+                recognitionLoopDoesNotAllocate();
+            }
+        });
+        checks.put("captureLoopDoesNotAllocate", new Check() {
+            public void run() throws Exception {
+                captureLoopDoesNotAllocate();
+            }
+        });
+
+        int failed = 0;
+        for (Map.Entry<String, Check> check : checks.entrySet()) {
+            try {
+                check.getValue().run();
+                System.out.println("PASS " + check.getKey());
+            } catch (Throwable e) {
+                failed++;
+                System.out.println("FAIL " + check.getKey());
+                e.printStackTrace(System.out);
+            }
+        }
+        System.out.println(String.format("%d of %d checks failed", failed, checks.size()));
+        System.exit(0 == failed ? 0 : 1);
+    }
+
+    private static void check(boolean condition, String message) {
+        if (!condition)
+            throw new AssertionError(message);
+    }
+
+    /**
+     * The decoding loop of the recognition thread must not allocate for
+     * chunks that do not change the hypothesis.
+     */
+    static void recognitionLoopDoesNotAllocate() throws Exception {
+        SpeechRecognizer recognizer = new SpeechRecognizer(BenchmarkData.config(), DIRECT);
+        try {
+            checkNoiseDoesNotAllocate(recognizer, 0);
+        } finally {
+            recognizer.shutdown();
+        }
+    }
+
+    /**
+     * Same for paced replay, which is captured on its own thread into the
+     * ring buffer like microphone input, with the voice activity gate and
+     * the audio recorder in the decoding loop.
+     */
+    static void captureLoopDoesNotAllocate() throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "pocketsphinx-host-checks");
+        SpeechRecognizer recognizer = new SpeechRecognizer(BenchmarkData.config(), DIRECT);
+        recognizer.setVoiceActivityGate(new VoiceActivityGate());
+        recognizer.setAudioRecorder(new AudioRecorder(dir));
+        // Utterances end with the replay rather than on timeout.
+        recognizer.setMaxSpeechTime(TimeUnit.MINUTES.toMillis(1));
+        try {
+            checkNoiseDoesNotAllocate(recognizer, 20);
+        } finally {
+            recognizer.shutdown();
+            File[] recordings = dir.listFiles();
+            if (null != recordings) {
+                for (File recording : recordings)
+                    recording.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    /**
+     * Decodes noise with the keyphrase search, which has no hypothesis, in
+     * utterances of two lengths, so that allocations made once per
+     * utterance cancel out.
+     *
+     * @param speed replay speed, 0 to decode as fast as possible
+     */
+    private static void checkNoiseDoesNotAllocate(SpeechRecognizer recognizer, double speed)
+        throws Exception
+    {
+        int sampleRate = (int) recognizer.getDecoder().getConfig().getFloat("-samprate");
+        BenchmarkData.addSearch(recognizer.getDecoder(), "kws");
+        short[] noise = new short[20 * sampleRate];
+        Random random = new Random(1);
+        for (int i = 0; i < noise.length; i++)
+            noise[i] = (short) (random.nextGaussian() * 30);
+
+        // Warm up the interpreter and the result pool first.
+        ReplaySource full = new ReplaySource(noise, sampleRate).setSpeed(speed);
+        ReplaySource quarter = new ReplaySource(noise, 0, noise.length / 4, sampleRate)
+            .setSpeed(speed);
+        for (int i = 0; i < 3; i++)
+            allocatedWhileDecoding(recognizer, full);
+        long fullBytes = allocatedWhileDecoding(recognizer, full);
+        long quarterBytes = allocatedWhileDecoding(recognizer, quarter);
+        long chunks = (noise.length - noise.length / 4) / recognizer.getChunkSize();
+        long perChunk = (fullBytes - quarterBytes) / chunks;
+        System.out.println(String.format("%d bytes per utterance, %d per chunk",
+                                         quarterBytes, perChunk));
+        check(perChunk < 16, perChunk + " bytes allocated per chunk");
+    }
+
+    /**
+     * Bytes allocated by the recognition thread between the start of the
+     * utterance and its final result, both delivered on that thread.
+     */
+    private static long allocatedWhileDecoding(SpeechRecognizer recognizer,
+                                               ReplaySource source)
+        throws Exception
+    {
+        final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        final long[] allocated = new long[2];
+        final CountDownLatch done = new CountDownLatch(1);
+        RecognitionListener listener = new RecognitionListener() {
+            public void onBeginningOfSpeech() {
+            }
+
+            public void onEndOfSpeech() {
+            }
+
+            public void onPartialResult(Hypothesis hypothesis, NBestList nbest) {
+            }
+
+            public void onResult(Hypothesis hypothesis, NBestList nbest) {
+                allocated[1] = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+                done.countDown();
+            }
+
+            public void onRead(short[] buffer, int offset, int nread) {
+            }
+
+            public void onReady() {
+                allocated[0] = threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+
+            public void onError(Exception e) {
+                done.countDown();
+            }
+        };
+        recognizer.addListener(listener);
+        try {
+            recognizer.process("kws", source);
+            check(done.await(60, TimeUnit.SECONDS), "no result");
+            recognizer.stop();
+        } finally {
+            recognizer.removeListener(listener);
+        }
+        check(allocated[0] > 0 && allocated[1] > 0, "no utterance decoded");
+        return allocated[1] - allocated[0];
+    }
+
+    /**
+     * A file that cannot be opened must not leave the pooled decoder in an
+     * utterance, the next item on the same decoder has to decode.
+     */
+    static void batchRecoversFromBadItem() throws Exception {
+        BatchRecognizer batch = new BatchRecognizer(BenchmarkData.config(), 1);
+        batch.addGrammarSearch("jsgf", new File(BenchmarkData.DATA_DIR, "goforward.gram"));
+        File good = BenchmarkData.corpus().get(0).file;
+        File bad = new File(BenchmarkData.DATA_DIR, "missing.raw");
+        try {
+            for (int round = 0; round < 2; round++) {
+                List<BatchRecognizer.Result> results =
+                    batch.recognizeFiles("jsgf", Arrays.asList(bad, good, bad, good));
+                for (int i = 0; i < results.size(); i += 2) {
+                    check(null != results.get(i).getError(), "missing file decoded");
+                    BatchRecognizer.Result result = results.get(i + 1);
+                    check(null == result.getError(), "good file failed: " + result.getError());
+                    check(null != result.getHypothesis(), "no hypothesis for good file");
+                }
+            }
+        } finally {
+            batch.shutdown();
+        }
+    }
+}
+
+/* vim: set ts=4 sw=4: */
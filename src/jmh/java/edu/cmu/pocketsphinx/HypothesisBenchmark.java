@@ -0,0 +1,77 @@
+package edu.cmu.pocketsphinx;
+
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of retrieving results after the first corpus utterance was
+ * decoded. With the partial state the utterance is left open, which is
+ * what the recognizer pays for every partial result.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class HypothesisBenchmark {
+
+    @Param({"ngram", "jsgf"})
+    public String search;
+
+    @Param({"partial", "final"})
+    public String state;
+
+    @Param({"10"})
+    public int nbestSize;
+
+    private Decoder decoder;
+
+    @Setup
+    public void setup() {
+        decoder = new Decoder(BenchmarkData.config());
+        BenchmarkData.addSearch(decoder, search);
+        decoder.setSearch(search);
+
+        short[] samples = BenchmarkData.corpus().get(0).samples;
+        decoder.startUtt();
+        decoder.processRaw(samples, samples.length, false, false);
+        if ("final".equals(state))
+            decoder.endUtt();
+    }
+
+    @TearDown
+    public void tearDown() {
+        decoder.delete();
+    }
+
+    @Benchmark
+    public String hyp() {
+        Hypothesis hypothesis = decoder.hyp();
+        return null == hypothesis ? null : hypothesis.getHypstr();
+    }
+
+    @Benchmark
+    public int nbest() {
+        int score = 0;
+        Iterator<NBest> it = decoder.nbest().iterator();
+        for (int i = 0; i < nbestSize && it.hasNext(); i++)
+            score += it.next().getScore();
+        return score;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,61 @@
+package edu.cmu.pocketsphinx;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Conversion of a byte stream to samples by the input stream source of
+ * the recognizer. Odd read sizes exercise the carried over byte.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class InputStreamSourceBenchmark {
+
+    @Param({"160", "2048"})
+    public int readSize;
+
+    private byte[] bytes;
+    private short[] buffer;
+    private SpeechRecognizer recognizer;
+
+    @Setup
+    public void setup() {
+        short[] samples = BenchmarkData.corpus().get(0).samples;
+        bytes = new byte[2 * samples.length];
+        for (int i = 0; i < samples.length; i++) {
+            bytes[2 * i] = (byte) samples[i];
+            bytes[2 * i + 1] = (byte) (samples[i] >> 8);
+        }
+        buffer = new short[readSize];
+        recognizer = new SpeechRecognizer(true);
+    }
+
+    @Benchmark
+    public int read() {
+        SpeechRecognizer.InputStreamSource source =
+            recognizer.new InputStreamSource(new ByteArrayInputStream(bytes));
+        int total = 0;
+        int nread;
+        while ((nread = source.read(buffer, 0, buffer.length)) != -1)
+            total += nread;
+        return total;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
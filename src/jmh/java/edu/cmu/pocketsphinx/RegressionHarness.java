@@ -0,0 +1,265 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the recognizer over the corpus and writes a JSON report with word
+ * error rate, latency percentiles and real-time factor, meant to be diffed
+ * between builds. Replay is unpaced by default, so hypotheses and error
+ * rates are reproducible and only timings vary between runs.
+ *
+ * <p>Configured with system properties:
+ * <ul>
+ * <li>pocketsphinx.regression.search: search type, ngram by default
+ * <li>pocketsphinx.regression.speed: replay speed, 0 for unpaced
+ * <li>pocketsphinx.regression.report: report file, regression.json by default
+ * </ul>
+ */
+public class RegressionHarness {
+
+    private static final String PREFIX = "pocketsphinx.regression.";
+    private static final long TIMEOUT_SECONDS = 600;
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static final class Result {
+        final BenchmarkData.Utterance utterance;
+        String hypothesis = "";
+        int errors;
+        int words;
+        UtteranceMetrics metrics;
+
+        Result(BenchmarkData.Utterance utterance) {
+            this.utterance = utterance;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        String search = System.getProperty(PREFIX + "search", "ngram");
+        double speed = Double.parseDouble(System.getProperty(PREFIX + "speed", "0"));
+        File report = new File(System.getProperty(PREFIX + "report", "regression.json"));
+
+        SpeechRecognizer.DEBUG_MSGS_ALLOWED = false;
+        Config config = BenchmarkData.config();
+        int sampleRate = (int) config.getFloat("-samprate");
+        SpeechRecognizer recognizer = new SpeechRecognizer(config, DIRECT);
+        BenchmarkData.addSearch(recognizer.getDecoder(), search);
+
+        List<Result> results = new ArrayList<Result>();
+        try {
+            for (BenchmarkData.Utterance utterance : BenchmarkData.corpus())
+                results.add(run(recognizer, search, sampleRate, speed, utterance));
+        } finally {
+            recognizer.shutdown();
+        }
+
+        File dir = report.getAbsoluteFile().getParentFile();
+        if (null != dir)
+            dir.mkdirs();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(report), "UTF-8");
+        try {
+            writeReport(writer, search, speed, results);
+        } finally {
+            writer.close();
+        }
+        System.out.println(format(Locale.ROOT, "%s: WER %.2f%% over %d utterances, report in %s",
+                                  search, 100 * wordErrorRate(results), results.size(),
+                                  report));
+    }
+
+    private static Result run(SpeechRecognizer recognizer, String search, int sampleRate,
+                              double speed, BenchmarkData.Utterance utterance)
+        throws InterruptedException
+    {
+        final Result result = new Result(utterance);
+        final CountDownLatch done = new CountDownLatch(1);
+        final Exception[] error = new Exception[1];
+        RecognitionListener listener = new RecognitionListener() {
+            public void onBeginningOfSpeech() {
+            }
+
+            public void onEndOfSpeech() {
+            }
+
+            public void onPartialResult(Hypothesis hypothesis, NBestList nbest) {
+            }
+
+            public void onResult(Hypothesis hypothesis, NBestList nbest) {
+                if (null != hypothesis)
+                    result.hypothesis = hypothesis.getHypstr();
+            }
+
+            public void onRead(short[] buffer, int offset, int nread) {
+            }
+
+            public void onReady() {
+            }
+
+            public void onError(Exception e) {
+                error[0] = e;
+                done.countDown();
+            }
+        };
+        // Called after the final result is delivered.
+        recognizer.setMetricsListener(new UtteranceMetrics.Listener() {
+            public void onUtteranceMetrics(UtteranceMetrics metrics) {
+                result.metrics = metrics;
+                done.countDown();
+            }
+        });
+
+        ReplaySource source = new ReplaySource(utterance.samples, sampleRate).setSpeed(speed);
+        recognizer.setClock(source);
+        // Paced replay is subject to the speech time limit, decode it all.
+        recognizer.setMaxSpeechTime(source.getDurationMillis() + 1000);
+        recognizer.addListener(listener);
+        try {
+            recognizer.process(search, source);
+            if (!done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS))
+                throw new IllegalStateException(utterance.file + ": no result");
+            recognizer.stop();
+        } finally {
+            recognizer.removeListener(listener);
+        }
+        if (null != error[0])
+            throw new IllegalStateException(utterance.file + ": recognition failed", error[0]);
+
+        String[] reference = words(utterance.transcription);
+        result.words = reference.length;
+        result.errors = editDistance(reference, words(result.hypothesis));
+        return result;
+    }
+
+    private static String[] words(String text) {
+        String trimmed = text.trim().toLowerCase(Locale.ROOT);
+        return trimmed.isEmpty() ? new String[0] : trimmed.split("\\s+");
+    }
+
+    /**
+     * Number of substitutions, insertions and deletions turning the
+     * reference into the hypothesis.
+     */
+    static int editDistance(String[] reference, String[] hypothesis) {
+        int[] previous = new int[hypothesis.length + 1];
+        int[] current = new int[hypothesis.length + 1];
+        for (int j = 0; j <= hypothesis.length; j++)
+            previous[j] = j;
+        for (int i = 1; i <= reference.length; i++) {
+            current[0] = i;
+            for (int j = 1; j <= hypothesis.length; j++) {
+                int substitution = previous[j - 1]
+                    + (reference[i - 1].equals(hypothesis[j - 1]) ? 0 : 1);
+                current[j] = Math.min(substitution,
+                                      Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[hypothesis.length];
+    }
+
+    private static double wordErrorRate(List<Result> results) {
+        long errors = 0;
+        long words = 0;
+        for (Result result : results) {
+            errors += result.errors;
+            words += result.words;
+        }
+        return 0 == words ? 0 : (double) errors / words;
+    }
+
+    /**
+     * Nearest-rank percentile of sorted values, -1 if there are none.
+     */
+    private static long percentile(long[] sorted, double percentile) {
+        if (0 == sorted.length)
+            return -1;
+        int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+        return sorted[Math.max(0, rank - 1)];
+    }
+
+    private static void writeReport(Writer out, String search, double speed,
+                                    List<Result> results)
+        throws IOException
+    {
+        long audioMillis = 0;
+        long decodingMillis = 0;
+        long[] latencies = new long[results.size()];
+        int n = 0;
+        for (Result result : results) {
+            audioMillis += result.metrics.getAudioMillis();
+            decodingMillis += result.metrics.getDecodingMillis();
+            if (result.metrics.getEndOfSpeechToResultMillis() >= 0)
+                latencies[n++] = result.metrics.getEndOfSpeechToResultMillis();
+        }
+        latencies = Arrays.copyOf(latencies, n);
+        Arrays.sort(latencies);
+
+        out.write("{\n");
+        out.write(format(Locale.ROOT, "  \"search\": %s,\n", quote(search)));
+        out.write(format(Locale.ROOT, "  \"speed\": %s,\n", speed));
+        out.write(format(Locale.ROOT, "  \"utterances\": %d,\n", results.size()));
+        out.write(format(Locale.ROOT, "  \"wer\": %.4f,\n", wordErrorRate(results)));
+        out.write(format(Locale.ROOT, "  \"audioMillis\": %d,\n", audioMillis));
+        out.write(format(Locale.ROOT, "  \"rtf\": %.4f,\n",
+                         0 == audioMillis ? 0 : (double) decodingMillis / audioMillis));
+        out.write(format(Locale.ROOT,
+                         "  \"resultLatencyMillis\": {\"p50\": %d, \"p90\": %d, \"p99\": %d, \"max\": %d},\n",
+                         percentile(latencies, 50), percentile(latencies, 90),
+                         percentile(latencies, 99), percentile(latencies, 100)));
+        out.write("  \"results\": [\n");
+        for (int i = 0; i < results.size(); i++) {
+            Result result = results.get(i);
+            UtteranceMetrics metrics = result.metrics;
+            out.write(format(Locale.ROOT,
+                             "    {\"file\": %s, \"reference\": %s, \"hypothesis\": %s, "
+                             + "\"words\": %d, \"errors\": %d, \"audioMillis\": %d, "
+                             + "\"rtf\": %.4f, \"resultLatencyMillis\": %d, "
+                             + "\"processP50Micros\": %d, \"processP95Micros\": %d}%s\n",
+                             quote(result.utterance.file.getPath()),
+                             quote(result.utterance.transcription),
+                             quote(result.hypothesis), result.words, result.errors,
+                             metrics.getAudioMillis(), metrics.getRealTimeFactor(),
+                             metrics.getEndOfSpeechToResultMillis(),
+                             metrics.getProcessPercentileMicros(50),
+                             metrics.getProcessPercentileMicros(95),
+                             i + 1 < results.size() ? "," : ""));
+        }
+        out.write("  ]\n");
+        out.write("}\n");
+    }
+
+    private static String quote(String value) {
+        StringBuilder sb = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if ('"' == c || '\\' == c)
+                sb.append('\\').append(c);
+            else if (c < 0x20)
+                sb.append(format("\\u%04x", (int) c));
+            else
+                sb.append(c);
+        }
+        return sb.append('"').toString();
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,126 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Startup time and memory of several recognizers sharing one decoder, the
+ * way {@link SpeechRecognizerSetup#getSharedRecognizer} creates them,
+ * against the same number of recognizers with a decoder each. Every fork
+ * starts one set of recognizers in a fresh process, so the time is cold
+ * startup, and prints the growth of the resident set and of the Java heap
+ * it caused.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 0)
+@Measurement(iterations = 1)
+@Fork(5)
+@State(Scope.Thread)
+public class SharedDecoderBenchmark {
+
+    private static final Executor DIRECT = new Executor() {
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    @Param({"1", "2", "4"})
+    public int recognizers;
+
+    @Param({"true", "false"})
+    public boolean shared;
+
+    private Config config;
+    private SpeechRecognizer[] created;
+    private long rssBefore;
+    private long heapBefore;
+
+    @Setup
+    public void setup() throws IOException {
+        SpeechRecognizer.DEBUG_MSGS_ALLOWED = false;
+        config = BenchmarkData.config();
+        created = new SpeechRecognizer[recognizers];
+        rssBefore = residentKilobytes();
+        heapBefore = usedHeap();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        long rss = residentKilobytes() - rssBefore;
+        long heap = usedHeap() - heapBefore;
+        System.out.println(format(Locale.ROOT,
+                                  "%d %s recognizers: resident set +%d kB, heap +%d kB",
+                                  recognizers, shared ? "shared" : "separate",
+                                  rss, heap / 1024));
+        for (SpeechRecognizer recognizer : created) {
+            if (null != recognizer)
+                recognizer.shutdown();
+        }
+    }
+
+    @Benchmark
+    public SpeechRecognizer[] start() {
+        SharedDecoder decoder = null;
+        for (int i = 0; i < recognizers; i++) {
+            if (!shared || null == decoder)
+                decoder = new SharedDecoder(new Decoder(config));
+            else
+                decoder.retain();
+            created[i] = new SpeechRecognizer(config, decoder, DIRECT);
+        }
+        return created;
+    }
+
+    private static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * Returns VmRSS of the process from /proc, -1 where it is not
+     * available.
+     */
+    private static long residentKilobytes() throws IOException {
+        BufferedReader reader;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/self/status"));
+        } catch (IOException e) {
+            return -1;
+        }
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                if (line.startsWith("VmRSS:"))
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+            }
+        } finally {
+            reader.close();
+        }
+        return -1;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -3,10 +3,25 @@ package edu.cmu.pocketsphinx;
 import static  android.content.Context.MODE_PRIVATE;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import android.content.Context;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.util.Log;
 
@@ -24,6 +39,32 @@ public class Assets {
 
     private static final String ASSET_LIST_NAME = "assets.lst";
 
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Root of virtual paths of assets mapped with {@link #mapAssets}.
+     */
+    public static final String ASSET_ROOT = "/android_asset";
+
+    /**
+     * Receives progress of {@link #syncAssets(Context, SyncListener)}. Called
+     * from worker threads.
+     */
+    public interface SyncListener {
+        /**
+         * Called when a file is processed.
+         *
+         * @param path         relative asset path
+         * @param done         number of files processed so far
+         * @param total        total number of files
+         * @param copied       false if the file was up to date and skipped
+         * @param bytes        number of bytes copied
+         * @param copyMillis   time spent copying and checksumming the file
+         */
+        void onFileSynced(String path, int done, int total, boolean copied,
+                          long bytes, long copyMillis);
+    }
+
     /**
      * Synchronizes asset files with the content on external storage. There
      * must be special file {@value #ASSET_LIST_NAME} among the application
@@ -40,44 +81,214 @@ public class Assets {
      * @throws IOException if an I/O error occurs or "assets.lst" is missing
      */
     public static File syncAssets(Context context) throws IOException {
-        AssetManager assets = context.getAssets();
-        Reader reader = new InputStreamReader(assets.open(ASSET_LIST_NAME));
-        BufferedReader br = new BufferedReader(reader);
-        File appDir = getApplicationDir(context);
-        Set<String> assetPaths = new HashSet<String>();
-        String path;
+        return syncAssets(context, null);
+    }
 
-        while (null != (path = br.readLine())) {
-            File extFile = new File(appDir, path);
-            String md5Path = path + ".md5";
-            File extHash = new File(appDir, md5Path);
-            extFile.getParentFile().mkdirs();
+    /**
+     * Synchronizes asset files like {@link #syncAssets(Context)} using
+     * several threads. Each file is copied into a temporary file through a
+     * large buffer, its MD5 is computed in the same pass and the file is
+     * renamed into place only if the checksum matches the shipped one, so an
+     * interrupted extraction never leaves a truncated file behind. The
+     * checksum file on external storage records the computed checksum and
+     * the file size, a file is skipped only if both still match.
+     *
+     * @param context  application context
+     * @param listener progress listener or null
+     * @return path to the root of resources directory on external storage
+     * @throws IOException if an I/O error occurs or "assets.lst" is missing
+     */
+    public static File syncAssets(Context context, final SyncListener listener)
+        throws IOException
+    {
+        final AssetManager assets = context.getAssets();
+        final File appDir = getApplicationDir(context);
+        final List<String> paths = readLines(assets.open(ASSET_LIST_NAME));
+        final Set<String> assetPaths = new HashSet<String>();
+        final AtomicInteger done = new AtomicInteger();
+        long start = System.currentTimeMillis();
+
+        int threads = Math.max(1, Math.min(paths.size(),
+            Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> results = new ArrayList<Future<Long>>();
+        for (final String path : paths) {
+            final File extFile = new File(appDir, path);
             assetPaths.add(extFile.getPath());
+            results.add(executor.submit(new Callable<Long>() {
+                public Long call() throws IOException {
+                    long fileStart = System.currentTimeMillis();
+                    long bytes = syncFile(assets, path, extFile);
+                    long millis = System.currentTimeMillis() - fileStart;
+                    if (bytes < 0) {
+                        Log.i(TAG, "skip " + path + ", checksums match");
+                    } else {
+                        Log.i(TAG, String.format("copied %s to %s, %d bytes in %d ms",
+                                                 path, extFile, bytes, millis));
+                    }
+                    if (null != listener) {
+                        listener.onFileSynced(path, done.incrementAndGet(),
+                                              paths.size(), bytes >= 0,
+                                              Math.max(bytes, 0), millis);
+                    }
+                    return bytes;
+                }
+            }));
+        }
+        executor.shutdown();
 
+        IOException error = null;
+        long total = 0;
+        for (Future<Long> result : results) {
             try {
-                // Read asset hash.
-                reader = new InputStreamReader(assets.open(md5Path));
-                String hash = new BufferedReader(reader).readLine();
-                // Read file hash and compare.
-                reader = new InputStreamReader(new FileInputStream(extHash));
-                if (hash.equals(new BufferedReader(reader).readLine())) {
-                    Log.i(TAG, "skip " + path + ", checksums match");
-                    continue;
+                total += Math.max(result.get(), 0);
+            } catch (ExecutionException e) {
+                if (null == error) {
+                    error = e.getCause() instanceof IOException
+                        ? (IOException) e.getCause()
+                        : new IOException("asset synchronization failed", e.getCause());
                 }
-            } catch (IOException e) {
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("asset synchronization interrupted");
             }
-
-            Log.i(TAG, "copy " + path + " to " + extFile);
-            copyStream(assets.open(path), new FileOutputStream(extFile));
-            InputStream hashStream = assets.open(md5Path);
-            copyStream(hashStream, new FileOutputStream(extHash));
         }
+        if (null != error)
+            throw error;
 
+        Log.i(TAG, String.format("synchronized %d assets, %d bytes copied in %d ms",
+                                 paths.size(), total,
+                                 System.currentTimeMillis() - start));
         removeUnusedAssets(new File(appDir, ASSET_LIST_NAME), assetPaths);
 
         return appDir;
     }
 
+    /**
+     * Copies a single asset unless the external copy is up to date.
+     *
+     * @return number of bytes copied or -1 if the file was skipped
+     */
+    private static long syncFile(AssetManager assets, String path, File extFile)
+        throws IOException
+    {
+        File extHash = new File(extFile.getPath() + ".md5");
+        String hash = null;
+        try {
+            hash = readLines(assets.open(path + ".md5")).get(0);
+        } catch (IOException e) {
+            // No checksum shipped, always copy.
+        } catch (IndexOutOfBoundsException e) {
+        }
+
+        if (null != hash && extHash.isFile()) {
+            try {
+                List<String> stored = readLines(new FileInputStream(extHash));
+                if (hash.equals(stored.get(0))
+                    && (stored.size() < 2
+                        || Long.parseLong(stored.get(1)) == extFile.length()))
+                    return -1;
+            } catch (IOException e) {
+            } catch (RuntimeException e) {
+                // Malformed checksum file, copy again.
+            }
+        }
+
+        extFile.getParentFile().mkdirs();
+        File tmp = new File(extFile.getPath() + ".tmp");
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        long bytes;
+        try {
+            bytes = copyChannel(Channels.newChannel(assets.open(path)), tmp, digest);
+            String actual = toHex(digest.digest());
+            if (null != hash && !hash.equalsIgnoreCase(actual))
+                throw new IOException(String.format(
+                    "checksum mismatch for %s: expected %s, got %s",
+                    path, hash, actual));
+            extHash.delete();
+            if (!tmp.renameTo(extFile)) {
+                extFile.delete();
+                if (!tmp.renameTo(extFile))
+                    throw new IOException("cannot rename " + tmp + " to " + extFile);
+            }
+
+            PrintStream ps = new PrintStream(new FileOutputStream(extHash));
+            try {
+                ps.println(null != hash ? hash : actual);
+                ps.println(bytes);
+            } finally {
+                ps.close();
+            }
+        } finally {
+            tmp.delete();
+        }
+        return bytes;
+    }
+
+    /**
+     * Copies channel into a file through a direct buffer updating the
+     * digest on the way. Closes the source channel. Package-private for
+     * benchmarks.
+     */
+    static long copyChannel(ReadableByteChannel source, File dest,
+                            MessageDigest digest)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+        FileOutputStream ostream = null;
+        long total = 0;
+        try {
+            ostream = new FileOutputStream(dest);
+            FileChannel channel = ostream.getChannel();
+            while (source.read(buffer) != -1) {
+                buffer.flip();
+                buffer.mark();
+                digest.update(buffer);
+                buffer.reset();
+                while (buffer.hasRemaining())
+                    total += channel.write(buffer);
+                buffer.clear();
+            }
+        } finally {
+            source.close();
+            if (null != ostream)
+                ostream.close();
+        }
+        return total;
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b & 0xff));
+        return sb.toString();
+    }
+
+    /**
+     * Reads all lines of the stream and closes it.
+     */
+    private static List<String> readLines(InputStream stream)
+        throws IOException
+    {
+        BufferedReader br = new BufferedReader(new InputStreamReader(stream));
+        List<String> lines = new ArrayList<String>();
+        try {
+            String line;
+            while (null != (line = br.readLine()))
+                lines.add(line);
+        } finally {
+            br.close();
+        }
+        return lines;
+    }
+
     /**
      * Copies application asset files to external storage. Recursively copies
      * asset files to a directory located on external storage and unique for
@@ -110,7 +321,16 @@ public class Assets {
         } else {
             Log.i(TAG, "copy " + path + " to " + externalFile);
             externalFile.getParentFile().mkdirs();
-            copyStream(assets.open(path), new FileOutputStream(externalFile));
+            InputStream istream = assets.open(path);
+            OutputStream ostream = null;
+            try {
+                ostream = new FileOutputStream(externalFile);
+                copyStream(istream, ostream);
+            } finally {
+                istream.close();
+                if (null != ostream)
+                    ostream.close();
+            }
             assetPaths.add(externalFile.getPath());
         }
 
@@ -119,6 +339,61 @@ public class Assets {
         return externalFile;
     }
 
+    /**
+     * Makes assets available to the decoder directly from the APK without
+     * copying them to storage. Every file under {@code path} is registered
+     * with the native library by its location inside the APK and the decoder
+     * reads it from the mapped package when it opens the returned path.
+     *
+     * <p>Assets must be stored uncompressed, list their extensions in
+     * {@code aaptOptions.noCompress} of the application build. Model files
+     * are read with stdio, pass {@code -mmap no} to the decoder, see
+     * {@link SpeechRecognizerSetup#setAcousticModelFromAssets}.
+     *
+     * @param context application context
+     * @param path    relative path to asset file or directory
+     * @return virtual path of the asset under {@value #ASSET_ROOT}
+     * @throws IOException if an asset is compressed or cannot be registered
+     */
+    public static File mapAssets(Context context, String path)
+        throws IOException
+    {
+        AssetManager assets = context.getAssets();
+        File virtualFile = new File(ASSET_ROOT, path);
+        String[] content = assets.list(path);
+
+        if (content.length > 0) {
+            // The decoder checks model directories exist by opening them.
+            register(virtualFile, -1, 0, 0);
+            for (String item : content)
+                mapAssets(context, new File(path, item).getPath());
+            return virtualFile;
+        }
+
+        AssetFileDescriptor afd;
+        try {
+            afd = assets.openFd(path);
+        } catch (FileNotFoundException e) {
+            throw new IOException(path + " is compressed in the APK, " +
+                                  "add its extension to noCompress");
+        }
+        try {
+            register(virtualFile, afd.getParcelFileDescriptor().getFd(),
+                     afd.getStartOffset(), afd.getLength());
+        } finally {
+            afd.close();
+        }
+        Log.i(TAG, "map " + path + " to " + virtualFile);
+        return virtualFile;
+    }
+
+    private static void register(File file, int fd, long offset, long length)
+        throws IOException
+    {
+        if (0 != pocketsphinx.registerAsset(file.getPath(), fd, offset, length))
+            throw new IOException("cannot register asset " + file);
+    }
+
     private static void removeUnusedAssets(File assetsListFile,
                                            Set<String> usedAssets)
         throws IOException
@@ -187,7 +462,7 @@ public class Assets {
     private static void copyStream(InputStream source, OutputStream dest)
         throws IOException
     {
-        byte[] buffer = new byte[1024];
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
         int nread;
 
         while ((nread = source.read(buffer)) != -1) {
@@ -0,0 +1,89 @@
+package edu.cmu.pocketsphinx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Keeps the most recently decoded audio so that it can be decoded again,
+ * for example by a search activated in the middle of a stream. Written and
+ * read by the decoding thread only.
+ */
+final class AudioHistory {
+
+    private final short[] data;
+    private int end;
+    private int length;
+
+    /**
+     * @param capacity number of samples to keep
+     */
+    AudioHistory(int capacity) {
+        data = new short[Math.max(1, capacity)];
+    }
+
+    int capacity() {
+        return data.length;
+    }
+
+    void reset() {
+        end = 0;
+        length = 0;
+    }
+
+    void write(short[] buffer, int offset, int count) {
+        if (count >= data.length) {
+            System.arraycopy(buffer, offset + count - data.length, data, 0, data.length);
+            end = 0;
+            length = data.length;
+            return;
+        }
+        int first = Math.min(count, data.length - end);
+        System.arraycopy(buffer, offset, data, end, first);
+        System.arraycopy(buffer, offset + first, data, 0, count - first);
+        advance(count);
+    }
+
+    /**
+     * Appends samples from a direct buffer in native order. Samples are
+     * read one by one, capture cycles through several buffers and a view
+     * per chunk would allocate.
+     */
+    void write(ByteBuffer buffer, int count) {
+        int skip = Math.max(0, count - data.length);
+        boolean swap = buffer.order() != ByteOrder.nativeOrder();
+        int pos = skip > 0 ? 0 : end;
+        for (int i = skip; i < count; i++) {
+            short sample = buffer.getShort(2 * i);
+            data[pos] = swap ? Short.reverseBytes(sample) : sample;
+            if (++pos == data.length)
+                pos = 0;
+        }
+        if (skip > 0) {
+            end = 0;
+            length = data.length;
+        } else {
+            advance(count);
+        }
+    }
+
+    private void advance(int count) {
+        end = (end + count) % data.length;
+        length = Math.min(data.length, length + count);
+    }
+
+    /**
+     * Copies the last samples in chronological order.
+     *
+     * @return number of samples copied, at most what is kept
+     */
+    int readLast(short[] buffer, int count) {
+        int n = Math.min(Math.min(count, length), buffer.length);
+        int start = (end - n + data.length) % data.length;
+        int first = Math.min(n, data.length - start);
+        System.arraycopy(data, start, buffer, 0, first);
+        System.arraycopy(data, 0, buffer, first, n - first);
+        return n;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,511 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPOutputStream;
+
+import android.util.Log;
+
+/**
+ * Records utterance audio to files for quality assurance without slowing
+ * recognition down. The decoding thread only copies decoded audio into a
+ * preallocated off-heap ring holding the last seconds of the stream. When
+ * an utterance ends it is either skipped, according to the sampling
+ * fraction, or handed to a background thread which writes it straight
+ * from the ring in large batches. Old recordings are deleted once the
+ * files in the directory exceed the disk budget.
+ *
+ * <p>Utterances longer than the ring are truncated to their end. If the
+ * writer falls so far behind that the ring overwrote an utterance before
+ * it was written, the recording is discarded and counted as lost.
+ *
+ * <p>The recorder is assigned with {@link SpeechRecognizer#setAudioRecorder}
+ * and must not be shared between recognizers. Call {@link #close} to stop
+ * the writer thread when the recorder is no longer needed.
+ */
+public class AudioRecorder {
+
+    private static final String TAG = AudioRecorder.class.getSimpleName();
+    private static final String PREFIX = "utt-";
+    private static final int QUEUE_SIZE = 16;
+    private static final int BATCH_SAMPLES = 32768;
+
+    /**
+     * File format of recordings.
+     */
+    public enum Format {
+        /** 16-bit mono WAV. */
+        WAV(".wav"),
+        /** 16-bit mono WAV compressed with gzip. */
+        WAV_GZIP(".wav.gz");
+
+        final String suffix;
+
+        Format(String suffix) {
+            this.suffix = suffix;
+        }
+    }
+
+    private final File dir;
+    private int historySeconds = 30;
+    private double sampling = 1;
+    private long diskBudget = 50L * 1024 * 1024;
+    private Format format = Format.WAV;
+    private final Random random = new Random();
+
+    // Decoding thread state.
+    private Ring ring;
+    private int sampleRate;
+    private long utteranceStart;
+    private int sequence;
+
+    private final BlockingQueue<Job> queue = new ArrayBlockingQueue<Job>(QUEUE_SIZE);
+    private Writer writer;
+
+    // Decoding thread counters.
+    private volatile long skipped;
+    private volatile long dropped;
+    // Writer thread counters.
+    private volatile long recorded;
+    private volatile long lost;
+    private volatile long deleted;
+
+    /**
+     * @param dir directory for recordings, created when needed
+     */
+    public AudioRecorder(File dir) {
+        this.dir = dir;
+    }
+
+    public File getDirectory() {
+        return dir;
+    }
+
+    /**
+     * Sets how many seconds of audio the ring keeps, which limits the
+     * length of a recording. Takes effect on the next start.
+     */
+    public AudioRecorder setHistorySeconds(int seconds) {
+        if (seconds <= 0)
+            throw new IllegalArgumentException("history must be positive");
+        this.historySeconds = seconds;
+        return this;
+    }
+
+    /**
+     * Sets fraction of utterances that are recorded, chosen at random.
+     *
+     * @param fraction value between 0 and 1, 1 by default
+     */
+    public AudioRecorder setSampling(double fraction) {
+        if (!(fraction >= 0 && fraction <= 1))
+            throw new IllegalArgumentException("fraction must be between 0 and 1");
+        this.sampling = fraction;
+        return this;
+    }
+
+    /**
+     * Sets how many bytes recordings may take, the oldest are deleted
+     * first. 50 MB by default.
+     */
+    public AudioRecorder setDiskBudget(long bytes) {
+        if (bytes <= 0)
+            throw new IllegalArgumentException("budget must be positive");
+        this.diskBudget = bytes;
+        return this;
+    }
+
+    public AudioRecorder setFormat(Format format) {
+        if (null == format)
+            throw new IllegalArgumentException("format must not be null");
+        this.format = format;
+        return this;
+    }
+
+    /**
+     * Returns number of utterances written to files.
+     */
+    public long getRecordedCount() {
+        return recorded;
+    }
+
+    /**
+     * Returns number of utterances not chosen for recording.
+     */
+    public long getSkippedCount() {
+        return skipped;
+    }
+
+    /**
+     * Returns number of utterances chosen but not recorded, because the
+     * writer did not keep up or writing failed.
+     */
+    public long getLostCount() {
+        return dropped + lost;
+    }
+
+    /**
+     * Returns number of recordings deleted to stay within the disk budget.
+     */
+    public long getDeletedCount() {
+        return deleted;
+    }
+
+    /**
+     * Writes pending recordings and stops the writer thread. Recording
+     * starts it again if needed.
+     */
+    public void close() {
+        Writer current;
+        synchronized (this) {
+            current = writer;
+            writer = null;
+        }
+        if (null == current)
+            return;
+        current.halt();
+        boolean interrupted = false;
+        while (current.isAlive()) {
+            try {
+                current.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Prepares the ring for a new recognition.
+     */
+    void begin(int sampleRate) {
+        int size = Math.max(1, sampleRate * historySeconds);
+        // Pending jobs keep a reference to the old ring.
+        if (null == ring || ring.capacity != size)
+            ring = new Ring(size);
+        this.sampleRate = sampleRate;
+        utteranceStart = ring.written;
+    }
+
+    void write(short[] buffer, int offset, int count) {
+        ring.write(buffer, offset, count);
+    }
+
+    /**
+     * Appends samples from a direct buffer in native order.
+     */
+    void write(ByteBuffer buffer, int count) {
+        ring.write(buffer, count);
+    }
+
+    /**
+     * Ends the current utterance, queues it for writing if it is sampled,
+     * and starts the next one.
+     */
+    void endUtterance(String searchName) {
+        long end = ring.written;
+        long start = Math.max(utteranceStart, end - ring.capacity);
+        utteranceStart = end;
+        if (end == start)
+            return;
+        if (random.nextDouble() >= sampling) {
+            skipped++;
+            return;
+        }
+
+        String name = format("%s%013d-%04d-%s%s", PREFIX, System.currentTimeMillis(),
+                             sequence++ % 10000, sanitize(searchName), format.suffix);
+        Job job = new Job(new File(dir, name), ring, start, end, sampleRate, format);
+        if (!queue.offer(job)) {
+            dropped++;
+            return;
+        }
+        synchronized (this) {
+            if (null == writer) {
+                writer = new Writer();
+                writer.start();
+            }
+        }
+    }
+
+    private static String sanitize(String name) {
+        if (null == name)
+            return "none";
+        StringBuilder sb = new StringBuilder(name.length());
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            sb.append(Character.isLetterOrDigit(c) || '-' == c || '_' == c ? c : '_');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Little-endian samples addressed by their position in the stream.
+     */
+    private static final class Ring {
+        final ByteBuffer data;
+        final ShortBuffer samples;
+        final int capacity;
+        // Samples ever written, published after the data.
+        volatile long written;
+
+        Ring(int capacity) {
+            this.capacity = capacity;
+            data = ByteBuffer.allocateDirect(2 * capacity).order(ByteOrder.LITTLE_ENDIAN);
+            samples = data.asShortBuffer();
+        }
+
+        void write(short[] source, int offset, int count) {
+            long start = written;
+            if (count > capacity) {
+                offset += count - capacity;
+                start += count - capacity;
+                count = capacity;
+            }
+            int pos = (int) (start % capacity);
+            int first = Math.min(count, capacity - pos);
+            samples.clear().position(pos);
+            samples.put(source, offset, first);
+            if (count > first) {
+                samples.position(0);
+                samples.put(source, offset + first, count - first);
+            }
+            written = start + count;
+        }
+
+        /**
+         * Copies samples one by one with absolute reads. Capture cycles
+         * through several buffers, a view per chunk would allocate.
+         */
+        void write(ByteBuffer source, int count) {
+            long start = written;
+            int skip = 0;
+            if (count > capacity) {
+                skip = count - capacity;
+                start += skip;
+                count = capacity;
+            }
+            boolean swap = source.order() != ByteOrder.nativeOrder();
+            int pos = (int) (start % capacity);
+            for (int i = skip; i < skip + count; i++) {
+                short sample = source.getShort(2 * i);
+                samples.put(pos, swap ? Short.reverseBytes(sample) : sample);
+                if (++pos == capacity)
+                    pos = 0;
+            }
+            written = start + count;
+        }
+
+        /**
+         * Whether the sample at the position is still in the ring.
+         */
+        boolean holds(long position) {
+            return written - capacity <= position;
+        }
+    }
+
+    private static final class Job {
+        // Tells the writer to stop.
+        static final Job STOP = new Job(null, null, 0, 0, 0, null);
+
+        final File file;
+        final Ring ring;
+        final long start;
+        final long end;
+        final int sampleRate;
+        final Format format;
+
+        Job(File file, Ring ring, long start, long end, int sampleRate, Format format) {
+            this.file = file;
+            this.ring = ring;
+            this.start = start;
+            this.end = end;
+            this.sampleRate = sampleRate;
+            this.format = format;
+        }
+    }
+
+    /**
+     * Writes queued utterances and keeps the directory within the budget.
+     */
+    private final class Writer extends Thread {
+        private final ArrayDeque<File> files = new ArrayDeque<File>();
+        private long usedBytes;
+        private byte[] scratch;
+
+        Writer() {
+            super("PocketSphinx audio recorder");
+            setDaemon(true);
+        }
+
+        /**
+         * Stops the thread once the jobs queued so far are written. Not
+         * interrupting keeps file channels open.
+         */
+        void halt() {
+            boolean interrupted = false;
+            for (;;) {
+                try {
+                    queue.put(Job.STOP);
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        @Override
+        public void run() {
+            dir.mkdirs();
+            scanDirectory();
+            for (;;) {
+                Job job;
+                try {
+                    job = queue.take();
+                } catch (InterruptedException e) {
+                    // Jobs still queued are written by the writer started
+                    // for the next utterance.
+                    synchronized (AudioRecorder.this) {
+                        if (writer == this)
+                            writer = null;
+                    }
+                    return;
+                }
+                if (Job.STOP == job)
+                    return;
+                File tmp = new File(job.file.getPath() + ".tmp");
+                try {
+                    if (writeJob(job, tmp) && tmp.renameTo(job.file)) {
+                        recorded++;
+                        files.add(job.file);
+                        usedBytes += job.file.length();
+                        enforceBudget();
+                    } else {
+                        lost++;
+                    }
+                } catch (IOException e) {
+                    Log.w(TAG, format("Failed to write %s", job.file), e);
+                    lost++;
+                } finally {
+                    tmp.delete();
+                }
+            }
+        }
+
+        private void scanDirectory() {
+            File[] existing = dir.listFiles();
+            if (null == existing)
+                return;
+            // Names start with the time, so they sort chronologically.
+            Arrays.sort(existing);
+            for (File file : existing) {
+                String name = file.getName();
+                if (name.startsWith(PREFIX) && !name.endsWith(".tmp")) {
+                    files.add(file);
+                    usedBytes += file.length();
+                }
+            }
+            enforceBudget();
+        }
+
+        private void enforceBudget() {
+            while (usedBytes > diskBudget && !files.isEmpty()) {
+                File oldest = files.poll();
+                usedBytes -= oldest.length();
+                if (oldest.delete())
+                    deleted++;
+            }
+            if (files.isEmpty())
+                usedBytes = 0;
+        }
+
+        /**
+         * @return false if the ring overwrote the audio during writing
+         */
+        private boolean writeJob(Job job, File tmp) throws IOException {
+            FileOutputStream stream = new FileOutputStream(tmp);
+            try {
+                if (Format.WAV_GZIP == job.format) {
+                    GZIPOutputStream gzip = new GZIPOutputStream(stream, 2 * BATCH_SAMPLES);
+                    if (!write(job, null, gzip))
+                        return false;
+                    gzip.finish();
+                    return true;
+                }
+                return write(job, stream.getChannel(), null);
+            } finally {
+                stream.close();
+            }
+        }
+
+        private boolean write(Job job, FileChannel channel, OutputStream out)
+            throws IOException
+        {
+            ByteBuffer header = waveHeader(job.end - job.start, job.sampleRate);
+            if (null != channel) {
+                while (header.hasRemaining())
+                    channel.write(header);
+            } else {
+                out.write(header.array());
+            }
+
+            Ring ring = job.ring;
+            long pos = job.start;
+            long batchStart = pos;
+            while (pos < job.end) {
+                // Also verifies that the previous batch was intact.
+                if (!ring.holds(pos))
+                    return false;
+                int offset = (int) (pos % ring.capacity);
+                int n = (int) Math.min(Math.min(BATCH_SAMPLES, job.end - pos),
+                                       ring.capacity - offset);
+                ByteBuffer batch = ring.data.duplicate();
+                batch.limit(2 * (offset + n)).position(2 * offset);
+                if (null != channel) {
+                    while (batch.hasRemaining())
+                        channel.write(batch);
+                } else {
+                    if (null == scratch)
+                        scratch = new byte[2 * BATCH_SAMPLES];
+                    batch.get(scratch, 0, 2 * n);
+                    out.write(scratch, 0, 2 * n);
+                }
+                batchStart = pos;
+                pos += n;
+            }
+            // The last batch may have been overwritten while it was copied.
+            return ring.holds(batchStart);
+        }
+    }
+
+    private static ByteBuffer waveHeader(long samples, int sampleRate) {
+        int dataBytes = (int) Math.min(2 * samples, Integer.MAX_VALUE - 36);
+        ByteBuffer header = ByteBuffer.allocate(44).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0x46464952).putInt(36 + dataBytes).putInt(0x45564157); // RIFF WAVE
+        header.putInt(0x20746d66).putInt(16); // fmt
+        header.putShort((short) 1).putShort((short) 1);
+        header.putInt(sampleRate).putInt(2 * sampleRate);
+        header.putShort((short) 2).putShort((short) 16);
+        header.putInt(0x61746164).putInt(dataBytes); // data
+        header.flip();
+        return header;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
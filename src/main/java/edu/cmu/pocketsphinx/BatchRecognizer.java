@@ -0,0 +1,499 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.util.Log;
+
+/**
+ * Recognizes many files or streams in parallel. Keeps a bounded pool of
+ * decoders sharing one configuration, each worker thread holds its own
+ * decoder and pulls the next item from a shared counter, so long and short
+ * items balance across cores without any shared state in the decoding
+ * loop.
+ *
+ * <p>Searches are registered once and are added to every decoder of the
+ * pool before it is used.
+ */
+public class BatchRecognizer {
+
+    private static final String TAG = BatchRecognizer.class.getSimpleName();
+
+    private static final int CHUNK_SIZE = 4096;
+
+    /**
+     * Recognition result of a single item together with its timings.
+     */
+    public static class Result {
+        private final int index;
+        private final String name;
+        private final Hypothesis hypothesis;
+        private final long samples;
+        private final long decodingTimeNanos;
+        private final int sampleRate;
+        private final Exception error;
+
+        Result(int index, String name, Hypothesis hypothesis, long samples,
+               long decodingTimeNanos, int sampleRate, Exception error) {
+            this.index = index;
+            this.name = name;
+            this.hypothesis = hypothesis;
+            this.samples = samples;
+            this.decodingTimeNanos = decodingTimeNanos;
+            this.sampleRate = sampleRate;
+            this.error = error;
+        }
+
+        /**
+         * Position of the item in the input list.
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the hypothesis or null if nothing was recognized or the
+         * item failed.
+         */
+        public Hypothesis getHypothesis() {
+            return hypothesis;
+        }
+
+        /**
+         * Returns the error that stopped processing of this item or null.
+         */
+        public Exception getError() {
+            return error;
+        }
+
+        public long getSampleCount() {
+            return samples;
+        }
+
+        public long getDecodingTimeMillis() {
+            return decodingTimeNanos / 1000000;
+        }
+
+        /**
+         * Ratio of decoding time to audio duration.
+         */
+        public double getRealTimeFactor() {
+            if (0 == samples)
+                return 0;
+            return decodingTimeNanos / 1e9 / ((double) samples / sampleRate);
+        }
+    }
+
+    private final Config config;
+    private final int sampleRate;
+    private final int poolSize;
+    private final BlockingQueue<PooledDecoder> idle;
+    private final List<SearchDefinition> searches =
+        new ArrayList<SearchDefinition>();
+    private int created;
+    private int generation;
+    private ExecutorService executor;
+
+    BatchRecognizer(Config config, int poolSize) {
+        if (poolSize <= 0)
+            throw new IllegalArgumentException("pool size must be positive");
+        this.config = config;
+        this.poolSize = poolSize;
+        this.idle = new ArrayBlockingQueue<PooledDecoder>(poolSize);
+        sampleRate = (int) config.getFloat("-samprate");
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Adds search based on JSpeech grammar to all decoders.
+     */
+    public void addGrammarSearch(final String name, final File file) {
+        addSearch(new SearchDefinition() {
+            void apply(Decoder decoder) {
+                decoder.setJsgfFile(name, file.getPath());
+            }
+        });
+    }
+
+    /**
+     * Adds search based on N-gram language model to all decoders.
+     */
+    public void addNgramSearch(final String name, final File file) {
+        addSearch(new SearchDefinition() {
+            void apply(Decoder decoder) {
+                SpeechRecognizer.setLmFile(decoder, name, file);
+            }
+        });
+    }
+
+    /**
+     * Adds search based on a single phrase to all decoders.
+     */
+    public void addKeyphraseSearch(final String name, final String phrase) {
+        addSearch(new SearchDefinition() {
+            void apply(Decoder decoder) {
+                decoder.setKeyphrase(name, phrase);
+            }
+        });
+    }
+
+    /**
+     * Adds search based on a keyphrase file to all decoders.
+     */
+    public void addKeywordSearch(final String name, final File file) {
+        addSearch(new SearchDefinition() {
+            void apply(Decoder decoder) {
+                decoder.setKws(name, file.getPath());
+            }
+        });
+    }
+
+    /**
+     * Adds phonetic search to all decoders.
+     */
+    public void addAllphoneSearch(final String name, final File file) {
+        addSearch(new SearchDefinition() {
+            void apply(Decoder decoder) {
+                decoder.setAllphoneFile(name, file.getPath());
+            }
+        });
+    }
+
+    private void addSearch(SearchDefinition search) {
+        synchronized (searches) {
+            searches.add(search);
+        }
+    }
+
+    /**
+     * Recognizes RAW or WAV files in parallel.
+     *
+     * @return results in the order of the input list
+     */
+    public List<Result> recognizeFiles(String searchName, List<File> files)
+        throws InterruptedException
+    {
+        Item[] items = new Item[files.size()];
+        for (int i = 0; i < items.length; i++)
+            items[i] = new FileItem(files.get(i), sampleRate);
+        return recognize(searchName, items);
+    }
+
+    /**
+     * Recognizes streams of 16-bit little-endian PCM in parallel. Streams are
+     * closed after processing.
+     *
+     * @return results in the order of the input list
+     */
+    public List<Result> recognizeStreams(String searchName,
+                                         List<? extends InputStream> streams)
+        throws InterruptedException
+    {
+        Item[] items = new Item[streams.size()];
+        for (int i = 0; i < items.length; i++)
+            items[i] = new StreamItem("stream " + i, streams.get(i));
+        return recognize(searchName, items);
+    }
+
+    private List<Result> recognize(final String searchName, final Item[] items)
+        throws InterruptedException
+    {
+        final Result[] results = new Result[items.length];
+        final AtomicInteger next = new AtomicInteger();
+        int workers = Math.min(poolSize, items.length);
+        final CountDownLatch done = new CountDownLatch(workers);
+        ExecutorService pool = getExecutor();
+
+        for (int w = 0; w < workers; w++) {
+            pool.execute(new Runnable() {
+                public void run() {
+                    PooledDecoder decoder = null;
+                    try {
+                        int i;
+                        while ((i = next.getAndIncrement()) < items.length
+                               && !Thread.currentThread().isInterrupted()) {
+                            if (null == decoder) {
+                                try {
+                                    decoder = checkout();
+                                    decoder.decoder.setSearch(searchName);
+                                } catch (RuntimeException e) {
+                                    // The item that could not get a decoder
+                                    // fails, the next one tries again.
+                                    Log.e(TAG, "Failed to prepare decoder", e);
+                                    if (null != decoder)
+                                        checkin(decoder);
+                                    decoder = null;
+                                    results[i] = new Result(i, items[i].name, null, 0, 0,
+                                                            sampleRate, e);
+                                    continue;
+                                }
+                            }
+                            results[i] = decode(decoder, i, items[i]);
+                        }
+                    } finally {
+                        if (null != decoder)
+                            checkin(decoder);
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            done.await();
+        } catch (InterruptedException e) {
+            // Let running items finish but do not start new ones.
+            next.set(items.length);
+            throw e;
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (null == results[i]) {
+                results[i] = new Result(i, items[i].name, null, 0, 0, sampleRate,
+                                        new IllegalStateException("not processed"));
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(results));
+    }
+
+    private Result decode(PooledDecoder pooled, int index, Item item) {
+        Decoder decoder = pooled.decoder;
+        long start = System.nanoTime();
+        try {
+            // Whatever can fail before decoding does so outside of the
+            // utterance, a decoder returned to the pool must not be in one.
+            item.open();
+            decoder.startUtt();
+            long samples;
+            try {
+                samples = item.feed(decoder, pooled);
+            } finally {
+                decoder.endUtt();
+            }
+            Hypothesis hypothesis = decoder.hyp();
+            return new Result(index, item.name, hypothesis, samples,
+                              System.nanoTime() - start, sampleRate, null);
+        } catch (Exception e) {
+            Log.w(TAG, format("Failed to recognize %s", item.name), e);
+            return new Result(index, item.name, null, 0,
+                              System.nanoTime() - start, sampleRate, e);
+        }
+    }
+
+    private PooledDecoder checkout() {
+        PooledDecoder decoder = idle.poll();
+        if (null == decoder) {
+            // Decoders share the configuration, create them one at a time.
+            synchronized (this) {
+                if (created < poolSize) {
+                    decoder = new PooledDecoder(new Decoder(config), generation);
+                    created++;
+                }
+            }
+        }
+        if (null == decoder) {
+            try {
+                decoder = idle.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+        }
+
+        try {
+            synchronized (searches) {
+                for (; decoder.searches < searches.size(); decoder.searches++)
+                    searches.get(decoder.searches).apply(decoder.decoder);
+            }
+        } catch (RuntimeException e) {
+            // Searches applied so far are kept, the failed one is retried
+            // by the next checkout.
+            checkin(decoder);
+            throw e;
+        }
+        return decoder;
+    }
+
+    /**
+     * Returns decoder to the pool or frees it if the pool was shut down
+     * while the decoder was in use.
+     */
+    private void checkin(PooledDecoder decoder) {
+        synchronized (this) {
+            if (decoder.generation != generation) {
+                decoder.decoder.delete();
+                created--;
+                return;
+            }
+        }
+        idle.offer(decoder);
+    }
+
+    private synchronized ExecutorService getExecutor() {
+        if (null == executor) {
+            executor = Executors.newFixedThreadPool(poolSize, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "PocketSphinx batch " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Stops worker threads and frees the decoders of the pool. Decoders
+     * still in use are freed when their item is done. Recognition requested
+     * later creates new decoders.
+     */
+    public synchronized void shutdown() {
+        if (null != executor) {
+            executor.shutdown();
+            executor = null;
+        }
+        generation++;
+        PooledDecoder decoder;
+        while (null != (decoder = idle.poll())) {
+            decoder.decoder.delete();
+            created--;
+        }
+    }
+
+    private static final class PooledDecoder {
+        final Decoder decoder;
+        final short[] buffer = new short[CHUNK_SIZE];
+        final byte[] bytes = new byte[2 * CHUNK_SIZE];
+        final int generation;
+        int searches;
+
+        PooledDecoder(Decoder decoder, int generation) {
+            this.decoder = decoder;
+            this.generation = generation;
+        }
+    }
+
+    private abstract static class SearchDefinition {
+        abstract void apply(Decoder decoder);
+    }
+
+    private abstract static class Item {
+        final String name;
+
+        Item(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Prepares the item for decoding, called before the utterance is
+         * started.
+         */
+        void open() throws IOException {
+        }
+
+        /**
+         * Feeds the whole item to the decoder.
+         *
+         * @return number of samples processed
+         */
+        abstract long feed(Decoder decoder, PooledDecoder scratch)
+            throws IOException;
+    }
+
+    private static final class FileItem extends Item {
+        private final File file;
+        private final int sampleRate;
+        private MappedFileSource source;
+
+        FileItem(File file, int sampleRate) {
+            super(file.getPath());
+            this.file = file;
+            this.sampleRate = sampleRate;
+        }
+
+        @Override
+        void open() throws IOException {
+            source = new MappedFileSource(file);
+            if (0 != source.getSampleRate() && source.getSampleRate() != sampleRate)
+                throw new IOException(format("%s has sampling rate %d, decoder expects %d",
+                                             file, source.getSampleRate(), sampleRate));
+        }
+
+        @Override
+        long feed(Decoder decoder, PooledDecoder scratch) throws IOException {
+            source.start();
+            if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+                ByteBuffer chunk;
+                while (null != (chunk = source.nextChunk(CHUNK_SIZE)))
+                    decoder.processRawDirect(chunk, chunk.remaining() / 2, false, false);
+            } else {
+                int nread;
+                while ((nread = source.read(scratch.buffer, 0, CHUNK_SIZE)) > 0)
+                    decoder.processRaw(scratch.buffer, nread, false, false);
+            }
+            return source.getSampleCount();
+        }
+    }
+
+    private static final class StreamItem extends Item {
+        private final InputStream stream;
+
+        StreamItem(String name, InputStream stream) {
+            super(name);
+            this.stream = stream;
+        }
+
+        @Override
+        long feed(Decoder decoder, PooledDecoder scratch) throws IOException {
+            byte[] bytes = scratch.bytes;
+            short[] buffer = scratch.buffer;
+            long samples = 0;
+            int pending = 0;
+            try {
+                int nread;
+                while ((nread = stream.read(bytes, pending, bytes.length - pending)) != -1) {
+                    nread += pending;
+                    int nsamp = nread / 2;
+                    for (int i = 0; i < nsamp; i++)
+                        buffer[i] = (short) ((bytes[2 * i] & 0xff) | (bytes[2 * i + 1] << 8));
+                    pending = nread % 2;
+                    if (pending != 0)
+                        bytes[0] = bytes[nread - 1];
+                    if (nsamp > 0)
+                        decoder.processRaw(buffer, nsamp, false, false);
+                    samples += nsamp;
+                }
+            } finally {
+                stream.close();
+            }
+            return samples;
+        }
+    }
+}
+
+/* vim: set ts=4 sw=4: */
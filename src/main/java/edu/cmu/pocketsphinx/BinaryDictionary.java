@@ -0,0 +1,363 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Pronunciation dictionary compiled to a sorted binary file that is
+ * memory-mapped instead of parsed. Lookups binary search the mapping, so
+ * only the pages touched are read from storage and opening the file costs
+ * the same for any size.
+ *
+ * <p>The decoder itself still loads a text dictionary. Instead of the full
+ * dictionary it gets one with only the words of the active searches,
+ * written by {@link #writeSubset}, which is what makes startup fast. Words
+ * added by the user go to a text overlay appended next to the binary file,
+ * so the base dictionary is never rewritten. Overlay entries take
+ * precedence over the base ones.
+ *
+ * <p>Compile a dictionary with {@link #compile} or on the command line:
+ * <pre>
+ * java edu.cmu.pocketsphinx.BinaryDictionary cmudict-en-us.dict cmudict-en-us.bin
+ * </pre>
+ */
+public class BinaryDictionary {
+
+    private static final int MAGIC = 0x50534444; // PSDD
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final ByteBuffer mapped;
+    private final int count;
+    private final File overlayFile;
+    private final Map<String, String> overlay = new LinkedHashMap<String, String>();
+
+    private BinaryDictionary(File file, ByteBuffer mapped, File overlayFile) {
+        this.file = file;
+        this.mapped = mapped;
+        this.count = mapped.getInt(8);
+        this.overlayFile = overlayFile;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (2 != args.length) {
+            System.err.println("usage: BinaryDictionary <text dictionary> <binary dictionary>");
+            System.exit(1);
+        }
+        int n = compile(new File(args[0]), new File(args[1]));
+        System.out.println(format("%d pronunciations written to %s", n, args[1]));
+    }
+
+    /**
+     * Compiles a text dictionary with one pronunciation per line, a word
+     * followed by its phones. Alternative pronunciations are separate
+     * words with a (2), (3) suffix as usual. Only the first of duplicate
+     * entries is kept.
+     *
+     * @return number of pronunciations written
+     */
+    public static int compile(File text, File binary) throws IOException {
+        Map<String, String> words = readText(text, false);
+        List<byte[][]> sorted = new ArrayList<byte[][]>(words.size());
+        for (Map.Entry<String, String> entry : words.entrySet()) {
+            sorted.add(new byte[][] {
+                entry.getKey().getBytes(UTF8), entry.getValue().getBytes(UTF8)
+            });
+        }
+        Collections.sort(sorted, new Comparator<byte[][]>() {
+            public int compare(byte[][] a, byte[][] b) {
+                return compareBytes(a[0], b[0]);
+            }
+        });
+
+        int headerBytes = HEADER_SIZE + 4 * sorted.size();
+        long total = headerBytes;
+        for (byte[][] entry : sorted)
+            total += entry[0].length + entry[1].length + 2;
+        if (total > Integer.MAX_VALUE)
+            throw new IOException(text + ": dictionary is too large");
+
+        ByteBuffer out = ByteBuffer.allocate((int) total);
+        out.putInt(MAGIC).putInt(VERSION).putInt(sorted.size()).putInt(0);
+        int offset = headerBytes;
+        for (byte[][] entry : sorted) {
+            out.putInt(offset);
+            offset += entry[0].length + entry[1].length + 2;
+        }
+        for (byte[][] entry : sorted)
+            out.put(entry[0]).put((byte) 0).put(entry[1]).put((byte) 0);
+        out.flip();
+
+        File tmp = new File(binary.getPath() + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = stream.getChannel();
+            while (out.hasRemaining())
+                channel.write(out);
+        } finally {
+            stream.close();
+        }
+        if (!tmp.renameTo(binary)) {
+            binary.delete();
+            if (!tmp.renameTo(binary)) {
+                tmp.delete();
+                throw new IOException("cannot rename " + tmp + " to " + binary);
+            }
+        }
+        return sorted.size();
+    }
+
+    /**
+     * Maps a compiled dictionary. Words added with {@link #addWord} are
+     * kept in a file named after the dictionary with an .overlay suffix.
+     *
+     * @throws IOException if the file is not a compiled dictionary
+     */
+    public static BinaryDictionary open(File binary) throws IOException {
+        ByteBuffer mapped;
+        RandomAccessFile raf = new RandomAccessFile(binary, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC
+            || mapped.getInt(4) != VERSION)
+            throw new IOException(binary + ": not a compiled dictionary");
+        long entries = HEADER_SIZE + 4L * mapped.getInt(8);
+        if (mapped.getInt(8) < 0 || entries > mapped.capacity())
+            throw new IOException(binary + ": truncated");
+
+        BinaryDictionary dictionary = new BinaryDictionary(
+            binary, mapped, new File(binary.getPath() + ".overlay"));
+        if (dictionary.overlayFile.isFile())
+            dictionary.overlay.putAll(readText(dictionary.overlayFile, true));
+        return dictionary;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns number of pronunciations in the base dictionary.
+     */
+    public int size() {
+        return count;
+    }
+
+    public synchronized boolean contains(String word) {
+        return null != getPronunciation(word);
+    }
+
+    /**
+     * Returns phones of the word separated by spaces, or null if the word
+     * is not in the dictionary.
+     */
+    public synchronized String getPronunciation(String word) {
+        String phones = overlay.get(word);
+        if (null != phones)
+            return phones;
+        byte[] key = word.getBytes(UTF8);
+        int i = lowerBound(key);
+        if (i < count && 0 == compareEntry(i, key, false))
+            return readString(phonesOffset(i));
+        return null;
+    }
+
+    /**
+     * Returns the pronunciations of a word including the alternative ones,
+     * keyed by the dictionary word like "read(2)".
+     */
+    public synchronized Map<String, String> getPronunciations(String word) {
+        Map<String, String> result = new LinkedHashMap<String, String>();
+        String phones = getPronunciation(word);
+        if (null == phones)
+            return result;
+        result.put(word, phones);
+
+        byte[] prefix = (word + "(").getBytes(UTF8);
+        for (int i = lowerBound(prefix); i < count && 0 == compareEntry(i, prefix, true); i++) {
+            String alternative = readString(mapped.getInt(HEADER_SIZE + 4 * i));
+            if (!overlay.containsKey(alternative))
+                result.put(alternative, readString(phonesOffset(i)));
+        }
+        String alternativePrefix = word + "(";
+        for (Map.Entry<String, String> entry : overlay.entrySet()) {
+            if (entry.getKey().startsWith(alternativePrefix))
+                result.put(entry.getKey(), entry.getValue());
+        }
+        return result;
+    }
+
+    /**
+     * Adds a word to the overlay. The word is appended to the overlay file
+     * right away, the base dictionary is not touched.
+     */
+    public synchronized void addWord(String word, String phones) throws IOException {
+        if (word.isEmpty() || word.matches(".*\\s.*"))
+            throw new IllegalArgumentException(format("invalid word \"%s\"", word));
+        String normalized = phones.trim().replaceAll("\\s+", " ");
+        if (normalized.isEmpty())
+            throw new IllegalArgumentException("no phones given for " + word);
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(overlayFile, true), UTF8);
+        try {
+            writer.write(word + " " + normalized + "\n");
+        } finally {
+            writer.close();
+        }
+        overlay.put(word, normalized);
+    }
+
+    /**
+     * Returns words added to the overlay with their pronunciations.
+     */
+    public synchronized Map<String, String> getOverlay() {
+        return new LinkedHashMap<String, String>(overlay);
+    }
+
+    /**
+     * Writes a text dictionary with the given words and their alternative
+     * pronunciations, meant to be loaded by the decoder in place of the
+     * full dictionary.
+     *
+     * @return words that were not found
+     */
+    public synchronized List<String> writeSubset(Collection<String> words, File out)
+        throws IOException
+    {
+        List<String> missing = new ArrayList<String>();
+        Set<String> written = new HashSet<String>();
+        Writer writer = new BufferedWriter(
+            new OutputStreamWriter(new FileOutputStream(out), UTF8));
+        try {
+            for (String word : words) {
+                Map<String, String> pronunciations = getPronunciations(word);
+                if (pronunciations.isEmpty())
+                    missing.add(word);
+                for (Map.Entry<String, String> entry : pronunciations.entrySet()) {
+                    if (written.add(entry.getKey()))
+                        writer.write(entry.getKey() + " " + entry.getValue() + "\n");
+                }
+            }
+        } finally {
+            writer.close();
+        }
+        return missing;
+    }
+
+    private int phonesOffset(int i) {
+        int pos = mapped.getInt(HEADER_SIZE + 4 * i);
+        while (0 != mapped.get(pos))
+            pos++;
+        return pos + 1;
+    }
+
+    private String readString(int pos) {
+        int end = pos;
+        while (0 != mapped.get(end))
+            end++;
+        byte[] bytes = new byte[end - pos];
+        ByteBuffer source = mapped.duplicate();
+        source.position(pos);
+        source.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Returns index of the first entry not less than the key.
+     */
+    private int lowerBound(byte[] key) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareEntry(mid, key, false) < 0)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Compares word of the entry with the key as unsigned bytes.
+     *
+     * @param prefix whether an entry starting with the key counts as equal
+     */
+    private int compareEntry(int i, byte[] key, boolean prefix) {
+        int pos = mapped.getInt(HEADER_SIZE + 4 * i);
+        for (int k = 0; k < key.length; k++) {
+            int b = mapped.get(pos + k) & 0xff;
+            if (0 == b)
+                return -1;
+            if (b != (key[k] & 0xff))
+                return b - (key[k] & 0xff);
+        }
+        return prefix || 0 == mapped.get(pos + key.length) ? 0 : 1;
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            int diff = (a[i] & 0xff) - (b[i] & 0xff);
+            if (0 != diff)
+                return diff;
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * @param override whether later entries of a word replace earlier ones
+     */
+    private static Map<String, String> readText(File text, boolean override)
+        throws IOException
+    {
+        Map<String, String> words = new LinkedHashMap<String, String>();
+        BufferedReader reader = new BufferedReader(
+            new InputStreamReader(new FileInputStream(text), UTF8));
+        try {
+            String line;
+            while (null != (line = reader.readLine())) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith(";;") || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\\s+", 2);
+                if (fields.length < 2 || (!override && words.containsKey(fields[0])))
+                    continue;
+                words.put(fields[0], fields[1].replaceAll("\\s+", " "));
+            }
+        } finally {
+            reader.close();
+        }
+        return words;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
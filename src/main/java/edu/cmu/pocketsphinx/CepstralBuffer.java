@@ -0,0 +1,237 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Cepstra of an utterance computed once and kept off-heap, so that the
+ * same audio can be decoded by several decoders or in several passes
+ * without running the front end again. Decoders still apply cepstral mean
+ * normalization and compute dynamic features themselves, the saving is the
+ * signal processing and MFCC computation.
+ *
+ * <p>Buffers can be saved to a compact file and mapped back later for
+ * rescoring without the original audio. The file stores native values and
+ * is only readable on platforms with the same byte order and front end
+ * parameters.
+ */
+public class CepstralBuffer {
+
+    private static final int MAGIC = 0x50534350; // PSCP
+    private static final int HEADER_SIZE = 16;
+    private static final int CHUNK_SIZE = 4096;
+
+    private final ByteBuffer data;
+    private final int frameBytes;
+    private final int frames;
+
+    private CepstralBuffer(ByteBuffer data, int frameBytes, int frames) {
+        this.data = data;
+        this.frameBytes = frameBytes;
+        this.frames = frames;
+    }
+
+    /**
+     * Computes cepstra of a whole file with the front end parameters of the
+     * configuration.
+     */
+    public static CepstralBuffer compute(Config config, MappedFileSource source) {
+        source.start();
+        Extractor extractor = new Extractor(config, source.getSampleCount());
+        try {
+            if (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN) {
+                ByteBuffer chunk;
+                while (null != (chunk = source.nextChunk(CHUNK_SIZE)))
+                    extractor.process(chunk, chunk.remaining() / 2);
+            } else {
+                short[] buffer = new short[CHUNK_SIZE];
+                int nread;
+                while ((nread = source.read(buffer, 0, buffer.length)) > 0)
+                    extractor.process(buffer, 0, nread);
+            }
+            return extractor.finish();
+        } finally {
+            extractor.frontEnd.delete();
+        }
+    }
+
+    /**
+     * Computes cepstra of 16-bit samples with the front end parameters of
+     * the configuration.
+     */
+    public static CepstralBuffer compute(Config config, short[] samples,
+                                         int offset, int length)
+    {
+        Extractor extractor = new Extractor(config, length);
+        try {
+            for (int pos = 0; pos < length; pos += CHUNK_SIZE)
+                extractor.process(samples, offset + pos, Math.min(CHUNK_SIZE, length - pos));
+            return extractor.finish();
+        } finally {
+            extractor.frontEnd.delete();
+        }
+    }
+
+    public int getFrameCount() {
+        return frames;
+    }
+
+    /**
+     * Size of a single frame in bytes.
+     */
+    public int getFrameBytes() {
+        return frameBytes;
+    }
+
+    /**
+     * Decodes all frames as one utterance.
+     *
+     * @return number of frames searched or negative value on error
+     */
+    public int decode(Decoder decoder) {
+        decoder.startUtt();
+        int result = decoder.processCepDirect(data, frames, false, true);
+        decoder.endUtt();
+        return result;
+    }
+
+    /**
+     * Feeds all frames into an utterance started by the caller.
+     *
+     * @return number of frames searched or negative value on error
+     */
+    public int process(Decoder decoder, boolean fullUtt) {
+        return decoder.processCepDirect(data, frames, false, fullUtt);
+    }
+
+    /**
+     * Saves cepstra to a file that can be mapped back with {@link #load}.
+     */
+    public void save(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.nativeOrder());
+        header.putInt(MAGIC).putInt(frameBytes).putInt(frames).putInt(0);
+        header.flip();
+
+        FileOutputStream stream = new FileOutputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            ByteBuffer body = data.duplicate();
+            body.clear().limit(frames * frameBytes);
+            while (header.hasRemaining())
+                channel.write(header);
+            while (body.hasRemaining())
+                channel.write(body);
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Maps cepstra saved with {@link #save}. The frames are decoded straight
+     * from the mapped file.
+     *
+     * @throws IOException if the file is not a cepstra file or was written on
+     *         a platform with different byte order
+     */
+    public static CepstralBuffer load(File file) throws IOException {
+        ByteBuffer mapped;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+        mapped.order(ByteOrder.nativeOrder());
+        if (mapped.capacity() < HEADER_SIZE || mapped.getInt(0) != MAGIC)
+            throw new IOException(file + ": not a cepstra file or wrong byte order");
+
+        int frameBytes = mapped.getInt(4);
+        int frames = mapped.getInt(8);
+        if (frameBytes <= 0 || frames < 0
+            || HEADER_SIZE + (long) frameBytes * frames > mapped.capacity())
+            throw new IOException(format("%s: truncated, %d frames expected", file, frames));
+
+        mapped.position(HEADER_SIZE);
+        return new CepstralBuffer(mapped.slice(), frameBytes, frames);
+    }
+
+    /**
+     * Runs the front end over audio chunks into a growing direct buffer.
+     */
+    private static final class Extractor {
+        final FrontEnd frontEnd;
+        private final int frameBytes;
+        private final int frameShift;
+        private ByteBuffer out;
+        private ByteBuffer input;
+        private int frames;
+
+        Extractor(Config config, long samples) {
+            frontEnd = new FrontEnd(config);
+            frameBytes = frontEnd.frameBytes();
+            int frate = config.getInt("-frate");
+            frameShift = Math.max(1, (int) config.getFloat("-samprate") / Math.max(1, frate));
+            out = allocate(samples / frameShift + 2);
+            frontEnd.startUtt();
+        }
+
+        private ByteBuffer allocate(long frames) {
+            long bytes = frames * frameBytes;
+            if (bytes > Integer.MAX_VALUE)
+                throw new IllegalArgumentException("audio is too long");
+            return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+        }
+
+        void process(short[] samples, int offset, int length) {
+            if (null == input)
+                input = ByteBuffer.allocateDirect(2 * CHUNK_SIZE).order(ByteOrder.nativeOrder());
+            input.clear();
+            input.asShortBuffer().put(samples, offset, length);
+            process(input, length);
+        }
+
+        void process(ByteBuffer chunk, int nsamp) {
+            // A chunk produces at most one frame more than its length allows.
+            ensureCapacity(frames + nsamp / frameShift + 2);
+            int n = frontEnd.processDirect(chunk, nsamp, tail());
+            if (n < 0)
+                throw new IllegalStateException("front end failed");
+            frames += n;
+        }
+
+        CepstralBuffer finish() {
+            ensureCapacity(frames + 1);
+            int n = frontEnd.endUtt(tail());
+            if (n < 0)
+                throw new IllegalStateException("front end failed");
+            frames += n;
+            return new CepstralBuffer(out, frameBytes, frames);
+        }
+
+        private ByteBuffer tail() {
+            ByteBuffer tail = out.duplicate();
+            tail.clear().position(frames * frameBytes);
+            return tail.slice();
+        }
+
+        private void ensureCapacity(long needed) {
+            if ((long) out.capacity() >= needed * frameBytes)
+                return;
+            ByteBuffer bigger = allocate(Math.max(needed, 2L * out.capacity() / frameBytes));
+            ByteBuffer used = out.duplicate();
+            used.clear().limit(frames * frameBytes);
+            bigger.put(used);
+            out = bigger;
+        }
+    }
+}
+
+/* vim: set ts=4 sw=4: */
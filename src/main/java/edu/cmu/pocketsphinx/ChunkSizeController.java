@@ -0,0 +1,98 @@
+package edu.cmu.pocketsphinx;
+
+/**
+ * Chooses how many samples capture reads at once. A small read size lowers
+ * latency but costs a decoder call per read, a large one amortizes that cost
+ * at the expense of latency.
+ *
+ * <p>In adaptive mode the decoding thread reports how long every chunk took
+ * to decode. When decoding takes a small fraction of real time, as with
+ * keyword spotting, the read size is halved down to about 10 ms of audio;
+ * when it approaches real time or audio starts to queue up, as with large
+ * N-gram searches, the read size is doubled up to the configured maximum.
+ */
+final class ChunkSizeController {
+
+    // Fractions of real time spent decoding that trigger a change.
+    private static final double SHRINK_LOAD = 0.3;
+    private static final double GROW_LOAD = 0.7;
+    // Number of decoded chunks between two adjustments.
+    private static final int WINDOW = 10;
+
+    private final int sampleRate;
+    private final int minSize;
+    private final int maxSize;
+    private final boolean adaptive;
+
+    private volatile int readSize;
+    private volatile long latencyMicros;
+
+    // Accessed by the decoding thread only.
+    private long windowNanos;
+    private long windowSamples;
+    private int windowChunks;
+
+    /**
+     * @param sampleRate sampling rate of the audio
+     * @param maxSize    read size in samples, the upper bound in adaptive mode
+     * @param adaptive   whether the read size follows the decoding load
+     */
+    ChunkSizeController(int sampleRate, int maxSize, boolean adaptive) {
+        this.sampleRate = sampleRate;
+        this.maxSize = maxSize;
+        this.minSize = Math.min(maxSize, Math.max(1, sampleRate / 100));
+        this.adaptive = adaptive;
+        this.readSize = maxSize;
+    }
+
+    /**
+     * Number of samples capture should read next.
+     */
+    int getReadSize() {
+        return readSize;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Estimated delay between audio being captured and decoded: the length
+     * of one read, plus audio waiting in the buffer, plus decoding time of a
+     * chunk.
+     */
+    long getLatencyMillis() {
+        return latencyMicros / 1000;
+    }
+
+    /**
+     * Called by the decoding thread after every chunk.
+     *
+     * @param nsamp   number of samples decoded
+     * @param nanos   time spent decoding them
+     * @param backlog number of samples still waiting to be decoded
+     */
+    void onDecoded(int nsamp, long nanos, int backlog) {
+        int size = readSize;
+        latencyMicros = (size + (long) backlog) * 1000000 / sampleRate + nanos / 1000;
+        if (!adaptive)
+            return;
+
+        windowNanos += nanos;
+        windowSamples += nsamp;
+        if (++windowChunks < WINDOW)
+            return;
+
+        double load = windowNanos / (windowSamples * 1e9 / sampleRate);
+        windowNanos = 0;
+        windowSamples = 0;
+        windowChunks = 0;
+
+        if ((load > GROW_LOAD || backlog > size) && size < maxSize)
+            readSize = Math.min(maxSize, 2 * size);
+        else if (load < SHRINK_LOAD && backlog <= size && size > minSize)
+            readSize = Math.max(minSize, size / 2);
+    }
+}
+
+/* vim: set ts=4 sw=4: */
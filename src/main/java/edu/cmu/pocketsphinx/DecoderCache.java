@@ -0,0 +1,183 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import android.util.Log;
+
+/**
+ * Process-wide cache of initialized decoders. Decoders are keyed by the
+ * normalized configuration they were created with, so a recognizer created
+ * again with the same setup, for example after an activity restart, reuses
+ * the loaded model instead of parsing it again.
+ *
+ * <p>The cache holds one reference to every decoder. Least recently used
+ * decoders are dropped when the estimated size of cached models exceeds the
+ * memory budget; a dropped decoder is deleted once no recognizer uses it.
+ */
+public final class DecoderCache {
+
+    private static final String TAG = DecoderCache.class.getSimpleName();
+
+    private static final DecoderCache INSTANCE = new DecoderCache();
+
+    private final LinkedHashMap<String, Entry> entries =
+        new LinkedHashMap<String, Entry>(8, 0.75f, true);
+    private final Map<String, FutureTask<SharedDecoder>> loading =
+        new HashMap<String, FutureTask<SharedDecoder>>();
+    private long budget = 64 * 1024 * 1024;
+    private long size;
+
+    private static final class Entry {
+        final SharedDecoder decoder;
+        final long size;
+
+        Entry(SharedDecoder decoder, long size) {
+            this.decoder = decoder;
+            this.size = size;
+        }
+    }
+
+    private DecoderCache() {
+    }
+
+    static DecoderCache getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Sets the memory budget for cached decoders in bytes. The size of a
+     * decoder is estimated from the size of the model files it loads.
+     */
+    public static void setMemoryBudget(long bytes) {
+        synchronized (INSTANCE) {
+            INSTANCE.budget = bytes;
+            INSTANCE.evict(null);
+        }
+    }
+
+    /**
+     * Returns estimated size of all cached decoders in bytes.
+     */
+    public static long getCachedSize() {
+        synchronized (INSTANCE) {
+            return INSTANCE.size;
+        }
+    }
+
+    /**
+     * Drops all cached decoders. Decoders still used by recognizers are
+     * deleted when the last of them is shut down.
+     */
+    public static void clear() {
+        synchronized (INSTANCE) {
+            for (Entry entry : INSTANCE.entries.values())
+                entry.decoder.release();
+            INSTANCE.entries.clear();
+            INSTANCE.size = 0;
+        }
+    }
+
+    /**
+     * Returns decoder for the configuration with a reference retained for
+     * the caller. Loads the decoder if it is not cached, concurrent requests
+     * for the same key wait for a single load.
+     *
+     * @param key normalized configuration contents
+     * @param config configuration to create the decoder with
+     * @param estimatedSize estimated memory used by the decoder
+     */
+    SharedDecoder acquire(String key, final Config config, long estimatedSize) {
+        FutureTask<SharedDecoder> task;
+        boolean owner = false;
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (null != entry && entry.decoder.retain())
+                return entry.decoder;
+
+            task = loading.get(key);
+            if (null == task) {
+                task = new FutureTask<SharedDecoder>(
+                    new Callable<SharedDecoder>() {
+                        public SharedDecoder call() {
+                            return new SharedDecoder(new Decoder(config));
+                        }
+                    });
+                loading.put(key, task);
+                owner = true;
+            }
+        }
+
+        if (owner) {
+            long start = System.currentTimeMillis();
+            task.run();
+            synchronized (this) {
+                loading.remove(key);
+                try {
+                    SharedDecoder decoder = task.get();
+                    Log.i(TAG, format("Loaded decoder in %d ms",
+                                      System.currentTimeMillis() - start));
+                    Entry old = entries.put(key, new Entry(decoder, estimatedSize));
+                    if (null != old) {
+                        size -= old.size;
+                        old.decoder.release();
+                    }
+                    size += estimatedSize;
+                    evict(key);
+                } catch (Exception e) {
+                    // Reported to every waiting caller below.
+                }
+            }
+        }
+
+        SharedDecoder decoder = getUninterruptibly(task);
+        if (!decoder.retain()) {
+            // Evicted and deleted before we got to it, load again.
+            return acquire(key, config, estimatedSize);
+        }
+        return decoder;
+    }
+
+    private static SharedDecoder getUninterruptibly(FutureTask<SharedDecoder> task) {
+        boolean interrupted = false;
+        try {
+            for (;;) {
+                try {
+                    return task.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    throw new IllegalStateException(cause);
+                }
+            }
+        } finally {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > budget && it.hasNext()) {
+            Map.Entry<String, Entry> next = it.next();
+            if (next.getKey().equals(keep))
+                continue;
+            it.remove();
+            size -= next.getValue().size;
+            next.getValue().decoder.release();
+            Log.i(TAG, "Evicted cached decoder");
+        }
+    }
+}
+
+/* vim: set ts=4 sw=4: */
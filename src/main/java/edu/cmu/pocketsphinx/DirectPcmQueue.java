@@ -0,0 +1,225 @@
+package edu.cmu.pocketsphinx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.cmu.pocketsphinx.SpeechRecognizer.OverrunPolicy;
+
+/**
+ * Single-producer/single-consumer queue of preallocated direct buffers.
+ * Capture fills a buffer in place and the decoder reads the same memory
+ * through {@link Decoder#processRawDirect}, so audio is never copied on the
+ * Java side.
+ *
+ * <p>Unlike {@link PcmRingBuffer} the consumer claims a chunk before
+ * decoding it and holds it until {@link #release}, because native code
+ * reads the buffer directly and the producer must not reuse it meanwhile.
+ */
+final class DirectPcmQueue {
+
+    private static final long NONE = Long.MIN_VALUE;
+
+    private final ByteBuffer[] slots;
+    private final int[] lengths;
+
+    // Next chunk to claim, advanced by the producer when dropping.
+    private final AtomicLong readIdx = new AtomicLong();
+    private volatile long writeIdx;
+    // Chunk being decoded, NONE if none.
+    private volatile long inUse = NONE;
+
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong droppedSamples = new AtomicLong();
+    private final AtomicLong underruns = new AtomicLong();
+
+    private volatile boolean closed;
+    private volatile Thread waitingReader;
+    private volatile Thread waitingWriter;
+
+    /**
+     * @param chunks number of chunks in the queue
+     * @param chunkSamples chunk size in samples
+     */
+    DirectPcmQueue(int chunks, int chunkSamples) {
+        if (chunks < 2)
+            throw new IllegalArgumentException("at least two chunks required");
+        slots = new ByteBuffer[chunks];
+        lengths = new int[chunks];
+        for (int i = 0; i < chunks; i++) {
+            slots[i] = ByteBuffer.allocateDirect(2 * chunkSamples)
+                .order(ByteOrder.nativeOrder());
+        }
+    }
+
+    /**
+     * Capacity of the queue in samples.
+     */
+    public int capacity() {
+        return slots.length * slots[0].capacity() / 2;
+    }
+
+    /**
+     * Size of a single chunk in bytes.
+     */
+    public int chunkBytes() {
+        return slots[0].capacity();
+    }
+
+    /**
+     * Number of published chunks waiting to be decoded.
+     */
+    public int queued() {
+        return (int) (writeIdx - readIdx.get());
+    }
+
+    /**
+     * Resets positions, counters and the closed flag. Must only be called
+     * when neither producer nor consumer is active.
+     */
+    public void reset() {
+        readIdx.set(0);
+        writeIdx = 0;
+        inUse = NONE;
+        overruns.set(0);
+        droppedSamples.set(0);
+        underruns.set(0);
+        closed = false;
+    }
+
+    public void close() {
+        closed = true;
+        LockSupport.unpark(waitingReader);
+        LockSupport.unpark(waitingWriter);
+    }
+
+    public long getOverrunCount() {
+        return overruns.get();
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples.get();
+    }
+
+    public long getUnderrunCount() {
+        return underruns.get();
+    }
+
+    /**
+     * Returns the next free chunk for the producer to fill. The chunk must
+     * be handed over with {@link #publish}.
+     *
+     * @return buffer cleared for writing or null if there is no space and
+     *         the policy is {@link OverrunPolicy#ERROR}, or the queue was
+     *         closed while waiting
+     */
+    public ByteBuffer acquire(OverrunPolicy policy) {
+        long w = writeIdx;
+        long oldest = w - slots.length;
+        if (readIdx.get() <= oldest) {
+            overruns.incrementAndGet();
+            switch (policy) {
+            case ERROR:
+                return null;
+            case DROP_OLDEST:
+                if (readIdx.compareAndSet(oldest, oldest + 1))
+                    droppedSamples.addAndGet(lengths[index(oldest)]);
+                break;
+            default:
+                break;
+            }
+        }
+
+        // Wait for the consumer to move past the chunk we are about to reuse.
+        waitingWriter = Thread.currentThread();
+        try {
+            while (readIdx.get() <= oldest || inUse == oldest) {
+                if (closed || Thread.currentThread().isInterrupted())
+                    return null;
+                LockSupport.park(this);
+            }
+        } finally {
+            waitingWriter = null;
+        }
+
+        ByteBuffer slot = slots[index(w)];
+        slot.clear();
+        return slot;
+    }
+
+    /**
+     * Publishes the chunk returned by the last {@link #acquire}.
+     *
+     * @param nsamp number of samples written into the chunk
+     */
+    public void publish(int nsamp) {
+        long w = writeIdx;
+        lengths[index(w)] = nsamp;
+        writeIdx = w + 1;
+        LockSupport.unpark(waitingReader);
+    }
+
+    /**
+     * Claims the oldest chunk for decoding, waiting if the queue is empty.
+     * The chunk is available through {@link #current} until
+     * {@link #release} is called.
+     *
+     * @return number of samples in the chunk, 0 if the thread was interrupted
+     *         while waiting, -1 if the queue is closed and drained
+     */
+    public int take() {
+        for (;;) {
+            long r = readIdx.get();
+            if (r == writeIdx) {
+                if (closed && r == writeIdx)
+                    return -1;
+                underruns.incrementAndGet();
+                if (!awaitData(r))
+                    return 0;
+                continue;
+            }
+
+            inUse = r;
+            if (readIdx.compareAndSet(r, r + 1))
+                return lengths[index(r)];
+            // The producer dropped this chunk, try the next one.
+            inUse = NONE;
+        }
+    }
+
+    /**
+     * Returns the chunk claimed by the last {@link #take}.
+     */
+    public ByteBuffer current() {
+        return slots[index(inUse)];
+    }
+
+    /**
+     * Returns the claimed chunk to the producer.
+     */
+    public void release() {
+        inUse = NONE;
+        LockSupport.unpark(waitingWriter);
+    }
+
+    private boolean awaitData(long r) {
+        waitingReader = Thread.currentThread();
+        try {
+            while (writeIdx == r && readIdx.get() == r && !closed) {
+                if (Thread.currentThread().isInterrupted())
+                    return false;
+                LockSupport.park(this);
+            }
+            return true;
+        } finally {
+            waitingReader = null;
+        }
+    }
+
+    private int index(long position) {
+        return (int) (position % slots.length);
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,214 @@
+package edu.cmu.pocketsphinx;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+/**
+ * Delivers recognition events to listeners through an executor. Events
+ * are queued in a bounded queue and delivered in order by a single drain
+ * task, so at most one task is pending on the executor at any time no
+ * matter how fast the decoder produces results.
+ *
+ * <p>A partial result that is still waiting when a newer one arrives is
+ * replaced by it, so a busy listener thread gets the latest hypothesis
+ * instead of a burst of stale ones. When the queue is full the oldest
+ * droppable event is discarded. {@link #clear} discards everything queued,
+ * including events that a running drain has not delivered yet.
+ */
+final class EventDispatcher {
+
+    /**
+     * Event that can be queued by the dispatcher.
+     */
+    interface Event extends Runnable {
+        /**
+         * Whether a newer event of the same kind makes this one obsolete.
+         */
+        boolean isCoalescible();
+
+        /**
+         * Whether the event may be dropped when the queue is full.
+         */
+        boolean isDroppable();
+
+        /**
+         * Called instead of {@link #run} for events that are not delivered.
+         */
+        void discard();
+    }
+
+    /**
+     * Queued event with its capture time. Entries are reused, so that
+     * queueing an event does not allocate.
+     */
+    private static final class Entry {
+        Event event;
+        long captureNanos;
+    }
+
+    private final int capacity;
+    private final ArrayDeque<Entry> queue;
+    private final ArrayDeque<Entry> free;
+    private Executor executor;
+    private boolean scheduled;
+
+    private volatile long lastLagNanos;
+    private volatile long maxLagNanos;
+    private volatile long dropped;
+    private volatile long coalesced;
+
+    private final Runnable drain = new Runnable() {
+        public void run() {
+            for (;;) {
+                Event event;
+                long captureNanos;
+                synchronized (EventDispatcher.this) {
+                    Entry entry = queue.poll();
+                    if (null == entry) {
+                        scheduled = false;
+                        return;
+                    }
+                    event = entry.event;
+                    captureNanos = entry.captureNanos;
+                    recycle(entry);
+                }
+                long lag = System.nanoTime() - captureNanos;
+                lastLagNanos = lag;
+                if (lag > maxLagNanos)
+                    maxLagNanos = lag;
+                event.run();
+            }
+        }
+    };
+
+    EventDispatcher(Executor executor, int capacity) {
+        this.executor = executor;
+        this.capacity = capacity;
+        this.queue = new ArrayDeque<Entry>(capacity);
+        this.free = new ArrayDeque<Entry>(capacity);
+    }
+
+    synchronized void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Queues event for delivery.
+     *
+     * @param captureNanos {@link System#nanoTime} when the audio the event
+     *                     refers to was captured
+     */
+    void post(Event event, long captureNanos) {
+        Executor target;
+        synchronized (this) {
+            if (event.isCoalescible() && replacePending(event, captureNanos))
+                return;
+            // Final results and errors are never dropped, they may exceed
+            // the capacity.
+            if (queue.size() >= capacity)
+                dropOldest();
+            queue.add(obtain(event, captureNanos));
+            if (scheduled)
+                return;
+            scheduled = true;
+            target = executor;
+        }
+        target.execute(drain);
+    }
+
+    /**
+     * Replaces the last queued event if it is coalescible. Only the last one
+     * is considered to keep the order relative to other events.
+     */
+    private boolean replacePending(Event event, long captureNanos) {
+        Entry last = queue.peekLast();
+        if (null == last || !last.event.isCoalescible())
+            return false;
+        last.event.discard();
+        last.event = event;
+        last.captureNanos = captureNanos;
+        coalesced++;
+        return true;
+    }
+
+    private Entry obtain(Event event, long captureNanos) {
+        Entry entry = free.poll();
+        if (null == entry)
+            entry = new Entry();
+        entry.event = event;
+        entry.captureNanos = captureNanos;
+        return entry;
+    }
+
+    private void recycle(Entry entry) {
+        entry.event = null;
+        if (free.size() < capacity)
+            free.add(entry);
+    }
+
+    private void dropOldest() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.event.isDroppable()) {
+                it.remove();
+                entry.event.discard();
+                recycle(entry);
+                dropped++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Discards all queued events.
+     */
+    synchronized void clear() {
+        Entry entry;
+        while (null != (entry = queue.poll())) {
+            entry.event.discard();
+            recycle(entry);
+        }
+    }
+
+    /**
+     * Discards queued events that may be dropped, keeping the others.
+     */
+    synchronized void clearDroppable() {
+        Iterator<Entry> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (entry.event.isDroppable()) {
+                it.remove();
+                entry.event.discard();
+                recycle(entry);
+            }
+        }
+    }
+
+    long getLastLagMillis() {
+        return lastLagNanos / 1000000;
+    }
+
+    long getMaxLagMillis() {
+        return maxLagNanos / 1000000;
+    }
+
+    long getDroppedCount() {
+        return dropped;
+    }
+
+    long getCoalescedCount() {
+        return coalesced;
+    }
+
+    synchronized void resetStatistics() {
+        lastLagNanos = 0;
+        maxLagNanos = 0;
+        dropped = 0;
+        coalesced = 0;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,219 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sound source reading 16-bit mono PCM from a memory-mapped RAW or WAV file.
+ * Intended for offline decoding with
+ * {@link SpeechRecognizer#process(String, MappedFileSource)}, the audio is
+ * decoded as fast as the decoder can consume it and no wall-clock limits
+ * apply. When decoding finishes the source reports the real-time factor.
+ */
+public class MappedFileSource implements SpeechRecognizer.DirectSoundSource {
+
+    private final File file;
+    private final MappedByteBuffer mapped;
+    private final ShortBuffer samples;
+    private final int sampleRate;
+
+    private volatile long decodingTimeNanos = -1;
+    private volatile int decodingSampleRate;
+
+    /**
+     * Maps the file. WAV files are recognized by the RIFF header, anything
+     * else is treated as headerless little-endian PCM.
+     *
+     * @param file RAW or WAV file with 16-bit mono audio
+     * @throws IOException if the file cannot be mapped or the WAV format is
+     *         not supported
+     */
+    public MappedFileSource(File file) throws IOException {
+        this.file = file;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid after the channel is closed.
+            raf.close();
+        }
+        mapped.order(ByteOrder.LITTLE_ENDIAN);
+
+        if (isWave(mapped)) {
+            sampleRate = parseWaveHeader(mapped);
+        } else {
+            sampleRate = 0;
+            mapped.limit(mapped.capacity() & ~1);
+        }
+        samples = mapped.slice().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    }
+
+    private static boolean isWave(ByteBuffer buffer) {
+        return buffer.capacity() >= 12
+            && buffer.getInt(0) == 0x46464952 // RIFF
+            && buffer.getInt(8) == 0x45564157; // WAVE
+    }
+
+    /**
+     * Positions the buffer at the beginning of PCM data and limits it to the
+     * end of the data chunk.
+     *
+     * @return sampling rate declared in the header
+     * @throws IOException if a chunk does not fit in the file or the format
+     *         chunk is too short
+     */
+    private int parseWaveHeader(ByteBuffer buffer) throws IOException {
+        int rate = 0;
+        long pos = 12;
+        while (pos + 8 <= buffer.capacity()) {
+            int id = buffer.getInt((int) pos);
+            long size = buffer.getInt((int) pos + 4) & 0xffffffffL;
+            int body = (int) pos + 8;
+            if (body + size > buffer.capacity())
+                throw new IOException(format("%s: chunk at %d exceeds the file", file, pos));
+
+            if (id == 0x20746d66) { // "fmt "
+                if (size < 16)
+                    throw new IOException(file + ": format chunk is too short");
+                int audioFormat = buffer.getShort(body) & 0xffff;
+                int channels = buffer.getShort(body + 2) & 0xffff;
+                int bits = buffer.getShort(body + 14) & 0xffff;
+                if (audioFormat != 1 || channels != 1 || bits != 16)
+                    throw new IOException(format(
+                        "%s: only 16-bit mono PCM is supported", file));
+                rate = buffer.getInt(body + 4);
+                if (rate <= 0)
+                    throw new IOException(format("%s: invalid sampling rate %d", file, rate));
+            } else if (id == 0x61746164) { // "data"
+                if (0 == rate)
+                    throw new IOException(file + ": data chunk before fmt");
+                buffer.position(body);
+                buffer.limit(body + (int) (size & ~1L));
+                return rate;
+            }
+            // Chunks are padded to even size. Positions are kept in a long,
+            // the size read from the file may be close to 4 GB.
+            pos = body + size + (size & 1);
+        }
+        throw new IOException(file + ": no data chunk");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Returns sampling rate from the WAV header or 0 for RAW files.
+     */
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * Returns total number of samples in the file.
+     */
+    public int getSampleCount() {
+        return samples.limit();
+    }
+
+    /**
+     * Rewinds the source to the beginning of audio data.
+     */
+    @Override
+    public boolean start() {
+        samples.rewind();
+        decodingTimeNanos = -1;
+        return true;
+    }
+
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        int n = Math.min(length, samples.remaining());
+        if (0 == n)
+            return -1;
+        samples.get(buffer, offset, n);
+        return n;
+    }
+
+    @Override
+    public int read(ByteBuffer buffer, int sizeInBytes) {
+        int n = Math.min(sizeInBytes / 2, samples.remaining());
+        if (0 == n)
+            return -1;
+        ShortBuffer dst = buffer.asShortBuffer();
+        if (buffer.order() == ByteOrder.LITTLE_ENDIAN) {
+            ShortBuffer src = samples.duplicate();
+            src.limit(src.position() + n);
+            dst.put(src);
+            samples.position(samples.position() + n);
+        } else {
+            for (int i = 0; i < n; i++)
+                dst.put(i, samples.get());
+        }
+        return 2 * n;
+    }
+
+    /**
+     * Returns the next chunk of the mapped file as a direct buffer that can
+     * be passed to {@link Decoder#processRawDirect} without copying. Only
+     * valid on little-endian platforms.
+     *
+     * @return chunk of at most {@code maxSamples} samples or null at the end
+     */
+    ByteBuffer nextChunk(int maxSamples) {
+        int n = Math.min(maxSamples, samples.remaining());
+        if (0 == n)
+            return null;
+        ByteBuffer chunk = mapped.duplicate();
+        int start = mapped.position() + 2 * samples.position();
+        chunk.limit(start + 2 * n);
+        chunk.position(start);
+        samples.position(samples.position() + n);
+        return chunk.slice();
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+
+    void setDecodingTime(long nanos, int rate) {
+        decodingSampleRate = rate;
+        decodingTimeNanos = nanos;
+    }
+
+    /**
+     * Returns time spent decoding the file in milliseconds or -1 if
+     * decoding has not finished yet.
+     */
+    public long getDecodingTimeMillis() {
+        long nanos = decodingTimeNanos;
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+
+    /**
+     * Returns ratio of decoding time to audio duration or -1 if decoding
+     * has not finished yet. Values below 1 mean faster than real time.
+     */
+    public double getRealTimeFactor() {
+        long nanos = decodingTimeNanos;
+        if (nanos < 0 || 0 == getSampleCount())
+            return -1;
+        double duration = (double) getSampleCount() / decodingSampleRate;
+        return nanos / 1e9 / duration;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,98 @@
+package edu.cmu.pocketsphinx;
+
+/**
+ * Accumulates {@link UtteranceMetrics} of the current utterance. Written by
+ * the decoding thread, except for the read blocking time which comes from
+ * the capture thread.
+ */
+final class MetricsRecorder {
+
+    private long samples;
+    private long decodingNanos;
+    private final long[] histogram = new long[UtteranceMetrics.bucketCount()];
+    private int processCount;
+    private long hypNanos;
+    private int hypCount;
+    private long nbestNanos;
+    private int nbestCount;
+    private int maxQueueDepth;
+    private long endOfSpeechNanos = -1;
+    private long overrunBase;
+    private long droppedBase;
+    private long readBlockedBase;
+
+    // Written by the capture thread.
+    private volatile long readBlockedNanos;
+
+    /**
+     * Starts a new utterance.
+     *
+     * @param overruns       overrun count of the pipeline so far
+     * @param droppedSamples dropped samples of the pipeline so far
+     */
+    void begin(long overruns, long droppedSamples) {
+        samples = 0;
+        decodingNanos = 0;
+        for (int i = 0; i < histogram.length; i++)
+            histogram[i] = 0;
+        processCount = 0;
+        hypNanos = 0;
+        hypCount = 0;
+        nbestNanos = 0;
+        nbestCount = 0;
+        maxQueueDepth = 0;
+        endOfSpeechNanos = -1;
+        overrunBase = overruns;
+        droppedBase = droppedSamples;
+        readBlockedBase = readBlockedNanos;
+    }
+
+    void onProcess(int nsamp, long nanos, int queueDepth) {
+        samples += nsamp;
+        decodingNanos += nanos;
+        histogram[UtteranceMetrics.bucketOf(nanos)]++;
+        processCount++;
+        if (queueDepth > maxQueueDepth)
+            maxQueueDepth = queueDepth;
+    }
+
+    void onHyp(long nanos) {
+        hypNanos += nanos;
+        hypCount++;
+    }
+
+    void onNbest(long nanos) {
+        nbestNanos += nanos;
+        nbestCount++;
+    }
+
+    void onRead(long nanos) {
+        readBlockedNanos += nanos;
+    }
+
+    /**
+     * Marks the end of speech, only the first call per utterance counts.
+     */
+    void onEndOfSpeech() {
+        if (endOfSpeechNanos < 0)
+            endOfSpeechNanos = System.nanoTime();
+    }
+
+    /**
+     * Called when the final result is ready.
+     */
+    UtteranceMetrics finish(String searchName, int sampleRate, long overruns,
+                            long droppedSamples)
+    {
+        long eosToResult = endOfSpeechNanos < 0 ? -1 : System.nanoTime() - endOfSpeechNanos;
+        long audioMillis = sampleRate > 0 ? samples * 1000 / sampleRate : 0;
+        return new UtteranceMetrics(searchName, audioMillis, decodingNanos,
+                                    eosToResult, histogram.clone(), processCount,
+                                    hypNanos, hypCount, nbestNanos, nbestCount,
+                                    readBlockedNanos - readBlockedBase, maxQueueDepth,
+                                    overruns - overrunBase,
+                                    droppedSamples - droppedBase);
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,34 @@
+package edu.cmu.pocketsphinx;
+
+import edu.cmu.pocketsphinx.Hypothesis;
+
+/**
+ * Receives results of {@link MultiSearchRecognizer}. Every event is tagged
+ * with the search it comes from. Called on the main thread.
+ */
+public interface MultiSearchListener {
+
+    /**
+     * Called when the search detects the start of an utterance.
+     */
+    public void onBeginningOfSpeech(String searchName);
+
+    /**
+     * Called when the search detects the end of an utterance.
+     */
+    public void onEndOfSpeech(String searchName);
+
+    /**
+     * Called when the hypothesis of the search changes.
+     */
+    public void onPartialResult(String searchName, Hypothesis hypothesis);
+
+    /**
+     * Called with the final hypothesis of every utterance.
+     */
+    public void onResult(String searchName, Hypothesis hypothesis);
+
+    public void onError(String searchName, Exception e);
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,438 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder.AudioSource;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import edu.cmu.pocketsphinx.SpeechRecognizer.OverrunPolicy;
+import edu.cmu.pocketsphinx.SpeechRecognizer.SoundSource;
+
+/**
+ * Runs several searches on the same audio at the same time, for example
+ * keyword spotting for a wake word next to a command grammar. A decoder
+ * has a single active search, so every search gets its own decoder and its
+ * own decoding thread, and one capture thread copies each chunk of audio to
+ * all of them. A slow search drops its oldest audio instead of holding back
+ * capture or the other searches.
+ *
+ * <p>Each search splits the stream into utterances on its own and reports
+ * them to {@link MultiSearchListener} tagged with its name. Recognition runs
+ * until {@link #stop} or {@link #cancel}.
+ */
+public class MultiSearchRecognizer {
+
+    private static final String TAG = MultiSearchRecognizer.class.getSimpleName();
+
+    private final Config config;
+    private final int sampleRate;
+    private final int chunkSize;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final List<Lane> lanes = new ArrayList<Lane>();
+    private final List<MultiSearchListener> listeners =
+        new CopyOnWriteArrayList<MultiSearchListener>();
+
+    private CaptureThread captureThread;
+    private final List<LaneThread> laneThreads = new ArrayList<LaneThread>();
+
+    MultiSearchRecognizer(Config config) {
+        this.config = config;
+        sampleRate = (int) config.getFloat("-samprate");
+        // 100 ms, a fair compromise for searches with different costs.
+        chunkSize = Math.max(1, sampleRate / 10);
+    }
+
+    public void addListener(MultiSearchListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(MultiSearchListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Adds keyword spotting search based on a keyphrase file.
+     */
+    public void addKeywordSearch(final String name, final File file) {
+        addLane(name, new SearchDefinition() {
+            void apply(Decoder decoder) {
+                decoder.setKws(name, file.getPath());
+            }
+        });
+    }
+
+    /**
+     * Adds keyword spotting search for a single phrase.
+     */
+    public void addKeyphraseSearch(final String name, final String phrase) {
+        addLane(name, new SearchDefinition() {
+            void apply(Decoder decoder) {
+                decoder.setKeyphrase(name, phrase);
+            }
+        });
+    }
+
+    /**
+     * Adds search based on JSpeech grammar.
+     */
+    public void addGrammarSearch(final String name, final File file) {
+        addLane(name, new SearchDefinition() {
+            void apply(Decoder decoder) {
+                decoder.setJsgfFile(name, file.getPath());
+            }
+        });
+    }
+
+    /**
+     * Adds search based on N-gram language model.
+     */
+    public void addNgramSearch(final String name, final File file) {
+        addLane(name, new SearchDefinition() {
+            void apply(Decoder decoder) {
+                SpeechRecognizer.setLmFile(decoder, name, file);
+            }
+        });
+    }
+
+    /**
+     * Creates decoder for a new search. Models are loaded by every decoder.
+     * The search is added only if it loads, otherwise the decoder is
+     * deleted.
+     */
+    private synchronized void addLane(String name, SearchDefinition search) {
+        if (null != captureThread)
+            throw new IllegalStateException("recognition is active");
+        for (Lane lane : lanes) {
+            if (lane.name.equals(name))
+                throw new IllegalArgumentException(format("search %s already exists", name));
+        }
+        Decoder decoder = new Decoder(config);
+        try {
+            search.apply(decoder);
+        } catch (RuntimeException e) {
+            decoder.delete();
+            throw e;
+        }
+        lanes.add(new Lane(name, decoder));
+    }
+
+    /**
+     * Starts all searches on microphone input.
+     *
+     * @return false if recognition is already active or there are no searches
+     */
+    public boolean startListening() {
+        return startListening(new Microphone());
+    }
+
+    /**
+     * Starts all searches on the given source.
+     *
+     * @return false if recognition is already active or there are no searches
+     */
+    public synchronized boolean startListening(SoundSource source) {
+        if (null != captureThread || lanes.isEmpty())
+            return false;
+
+        // Nothing is recorded as started until every search is activated.
+        List<LaneThread> threads = new ArrayList<LaneThread>(lanes.size());
+        for (Lane lane : lanes) {
+            lane.decoder.setSearch(lane.name);
+            // Two seconds of slack before a slow search starts dropping audio.
+            threads.add(new LaneThread(lane, new PcmRingBuffer(2 * sampleRate)));
+        }
+        laneThreads.addAll(threads);
+        captureThread = new CaptureThread(source, threads);
+        for (LaneThread thread : laneThreads)
+            thread.start();
+        captureThread.start();
+        Log.i(TAG, format("Started %d searches", lanes.size()));
+        return true;
+    }
+
+    /**
+     * Stops recognition, every search delivers the result of its current
+     * utterance.
+     *
+     * @return false if recognition was not active
+     */
+    public synchronized boolean stop() {
+        return finish(false);
+    }
+
+    /**
+     * Stops recognition without delivering results of current utterances.
+     *
+     * @return false if recognition was not active
+     */
+    public synchronized boolean cancel() {
+        boolean active = finish(true);
+        mainHandler.removeCallbacksAndMessages(null);
+        return active;
+    }
+
+    private boolean finish(boolean cancelled) {
+        if (null == captureThread)
+            return false;
+
+        for (LaneThread thread : laneThreads)
+            thread.cancelled = cancelled;
+        captureThread.halt();
+        boolean interrupted = false;
+        List<Thread> threads = new ArrayList<Thread>(laneThreads);
+        threads.add(captureThread);
+        for (Thread thread : threads) {
+            while (thread.isAlive()) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        captureThread = null;
+        laneThreads.clear();
+        return true;
+    }
+
+    /**
+     * Stops recognition and deletes all decoders. The recognizer must not
+     * be used afterwards.
+     */
+    public synchronized void shutdown() {
+        cancel();
+        for (Lane lane : lanes)
+            lane.decoder.delete();
+        lanes.clear();
+    }
+
+    private abstract static class SearchDefinition {
+        abstract void apply(Decoder decoder);
+    }
+
+    private static final class Lane {
+        final String name;
+        final Decoder decoder;
+
+        Lane(String name, Decoder decoder) {
+            this.name = name;
+            this.decoder = decoder;
+        }
+    }
+
+    /**
+     * Copies every captured chunk to all searches.
+     */
+    private final class CaptureThread extends Thread {
+        private final SoundSource source;
+        private final List<LaneThread> targets;
+        private final short[] buffer = new short[chunkSize];
+        private volatile boolean halted;
+
+        CaptureThread(SoundSource source, List<LaneThread> targets) {
+            super("PocketSphinx multi-search capture");
+            this.source = source;
+            this.targets = targets;
+        }
+
+        void halt() {
+            halted = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!source.start()) {
+                    post(null, new ErrorEvent(new IOException(
+                        "Failed to start recording. Microphone might be already in use.")));
+                    return;
+                }
+                while (!halted && !isInterrupted()) {
+                    int nread = source.read(buffer, 0, buffer.length);
+                    if (nread < 0)
+                        break;
+                    for (LaneThread target : targets)
+                        target.ring.write(buffer, 0, nread, OverrunPolicy.DROP_OLDEST);
+                }
+                source.stop();
+                source.release();
+            } finally {
+                for (LaneThread target : targets)
+                    target.ring.close();
+            }
+        }
+    }
+
+    /**
+     * Decodes the stream with one search, utterances are split on the end
+     * of speech.
+     */
+    private final class LaneThread extends Thread {
+        final Lane lane;
+        final PcmRingBuffer ring;
+        volatile boolean cancelled;
+        private final short[] buffer = new short[chunkSize];
+        private boolean inSpeech;
+        private String lastHypstr;
+
+        LaneThread(Lane lane, PcmRingBuffer ring) {
+            super("PocketSphinx search " + lane.name);
+            this.lane = lane;
+            this.ring = ring;
+        }
+
+        @Override
+        public void run() {
+            Decoder decoder = lane.decoder;
+            try {
+                decoder.startUtt();
+                int nread;
+                while (!cancelled && (nread = ring.read(buffer, 0, buffer.length)) != -1) {
+                    if (0 == nread)
+                        continue;
+                    decoder.processRaw(buffer, nread, false, false);
+
+                    boolean speech = decoder.getInSpeech();
+                    if (speech && !inSpeech) {
+                        inSpeech = true;
+                        post(lane.name, new SpeechEvent(true));
+                    } else if (!speech && inSpeech) {
+                        inSpeech = false;
+                        post(lane.name, new SpeechEvent(false));
+                        decoder.endUtt();
+                        post(lane.name, new ResultEvent(decoder.hyp(), true));
+                        decoder.startUtt();
+                        lastHypstr = null;
+                        continue;
+                    }
+
+                    Hypothesis hypothesis = decoder.hyp();
+                    if (null != hypothesis && !hypothesis.getHypstr().equals(lastHypstr)) {
+                        lastHypstr = hypothesis.getHypstr();
+                        post(lane.name, new ResultEvent(hypothesis, false));
+                    }
+                }
+                decoder.endUtt();
+                if (!cancelled)
+                    post(lane.name, new ResultEvent(decoder.hyp(), true));
+            } catch (RuntimeException e) {
+                Log.e(TAG, format("Search %s failed", lane.name), e);
+                post(lane.name, new ErrorEvent(e));
+            }
+        }
+    }
+
+    private void post(final String searchName, final Event event) {
+        mainHandler.post(new Runnable() {
+            public void run() {
+                for (MultiSearchListener listener : listeners)
+                    event.execute(searchName, listener);
+            }
+        });
+    }
+
+    private abstract static class Event {
+        abstract void execute(String searchName, MultiSearchListener listener);
+    }
+
+    private static final class SpeechEvent extends Event {
+        private final boolean state;
+
+        SpeechEvent(boolean state) {
+            this.state = state;
+        }
+
+        @Override
+        void execute(String searchName, MultiSearchListener listener) {
+            if (state)
+                listener.onBeginningOfSpeech(searchName);
+            else
+                listener.onEndOfSpeech(searchName);
+        }
+    }
+
+    private static final class ResultEvent extends Event {
+        private final Hypothesis hypothesis;
+        private final boolean finalResult;
+
+        ResultEvent(Hypothesis hypothesis, boolean finalResult) {
+            this.hypothesis = hypothesis;
+            this.finalResult = finalResult;
+        }
+
+        @Override
+        void execute(String searchName, MultiSearchListener listener) {
+            if (finalResult)
+                listener.onResult(searchName, hypothesis);
+            else
+                listener.onPartialResult(searchName, hypothesis);
+        }
+    }
+
+    private static final class ErrorEvent extends Event {
+        private final Exception exception;
+
+        ErrorEvent(Exception exception) {
+            this.exception = exception;
+        }
+
+        @Override
+        void execute(String searchName, MultiSearchListener listener) {
+            listener.onError(searchName, exception);
+        }
+    }
+
+    /**
+     * Microphone input at the decoder sampling rate.
+     */
+    private final class Microphone implements SoundSource {
+        private AudioRecord recorder;
+
+        @Override
+        public boolean start() {
+            int size = Math.max(4 * chunkSize, AudioRecord.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT));
+            recorder = new AudioRecord(AudioSource.VOICE_RECOGNITION, sampleRate,
+                                       AudioFormat.CHANNEL_IN_MONO,
+                                       AudioFormat.ENCODING_PCM_16BIT, size);
+            if (recorder.getState() == AudioRecord.STATE_UNINITIALIZED) {
+                recorder.release();
+                return false;
+            }
+            recorder.startRecording();
+            return true;
+        }
+
+        @Override
+        public int read(short[] buffer, int offset, int length) {
+            return recorder.read(buffer, offset, length);
+        }
+
+        @Override
+        public void stop() {
+            if (recorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING)
+                recorder.stop();
+        }
+
+        @Override
+        public void release() {
+            recorder.release();
+        }
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,91 @@
+package edu.cmu.pocketsphinx;
+
+import java.util.Map;
+
+/**
+ * Choice of language models used by a search created with
+ * {@link SpeechRecognizer#addNgramSetSearch}. Either one model of the set
+ * is selected or the models are interpolated with the given weights.
+ * Mixes are assigned per search with {@link SpeechRecognizer#setNgramMix}
+ * and take effect when the next utterance starts.
+ */
+public class NgramMix {
+
+    private final String selected;
+    private final String[] names;
+    private final float[] weights;
+
+    private NgramMix(String selected, String[] names, float[] weights) {
+        this.selected = selected;
+        this.names = names;
+        this.weights = weights;
+    }
+
+    /**
+     * Creates mix scoring with a single model of the set.
+     */
+    public static NgramMix select(String name) {
+        if (null == name)
+            throw new IllegalArgumentException("model name is null");
+        return new NgramMix(name, null, null);
+    }
+
+    /**
+     * Creates mix interpolating models of the set. Weights are normalized
+     * to sum to one, models of the set missing from the map get no weight.
+     */
+    public static NgramMix interpolate(Map<String, ? extends Number> weights) {
+        String[] names = new String[weights.size()];
+        float[] values = new float[weights.size()];
+        double sum = 0;
+        int i = 0;
+        for (Map.Entry<String, ? extends Number> entry : weights.entrySet()) {
+            double weight = entry.getValue().doubleValue();
+            if (weight < 0 || Double.isNaN(weight) || Double.isInfinite(weight))
+                throw new IllegalArgumentException("invalid weight of " + entry.getKey());
+            names[i] = entry.getKey();
+            values[i++] = (float) weight;
+            sum += weight;
+        }
+        if (sum <= 0)
+            throw new IllegalArgumentException("no model has a positive weight");
+        for (i = 0; i < values.length; i++)
+            values[i] = (float) (values[i] / sum);
+        return new NgramMix(null, names, values);
+    }
+
+    /**
+     * Returns name of the selected model or null if models are
+     * interpolated.
+     */
+    public String getSelected() {
+        return selected;
+    }
+
+    public boolean isInterpolated() {
+        return null == selected;
+    }
+
+    /**
+     * Returns normalized weight of the model, 0 for models that are not
+     * part of the interpolation.
+     */
+    public float getWeight(String name) {
+        if (null != selected)
+            return selected.equals(name) ? 1 : 0;
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name))
+                return weights[i];
+        }
+        return 0;
+    }
+
+    /**
+     * Names of models the mix refers to.
+     */
+    String[] getNames() {
+        return null != selected ? new String[] {selected} : names.clone();
+    }
+}
+
+/* vim: set ts=4 sw=4: */
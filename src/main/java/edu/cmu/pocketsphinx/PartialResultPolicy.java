@@ -0,0 +1,81 @@
+package edu.cmu.pocketsphinx;
+
+/**
+ * Controls how often partial results are delivered to
+ * {@link RecognitionListener#onPartialResult}. Policies are assigned per
+ * search with {@link SpeechRecognizer#setPartialResultPolicy}.
+ */
+public class PartialResultPolicy {
+
+    private boolean onlyOnChange = true;
+    private int maxPerSecond;
+    private boolean partialNbest = true;
+
+    /**
+     * Creates policy that emits a partial result whenever the hypothesis
+     * changes, without rate limit and with n-best list.
+     */
+    public static PartialResultPolicy defaultPolicy() {
+        return new PartialResultPolicy();
+    }
+
+    /**
+     * Creates policy that emits a partial result after every processed
+     * buffer together with n-best list.
+     */
+    public static PartialResultPolicy everyBuffer() {
+        return new PartialResultPolicy()
+            .setOnlyOnChange(false)
+            .setPartialNbest(true);
+    }
+
+    /**
+     * Emits partial result only if hypothesis string or score differs from
+     * the previously emitted one.
+     */
+    public PartialResultPolicy setOnlyOnChange(boolean onlyOnChange) {
+        this.onlyOnChange = onlyOnChange;
+        return this;
+    }
+
+    /**
+     * Limits the number of partial results per second, 0 means no limit.
+     */
+    public PartialResultPolicy setMaxPerSecond(int maxPerSecond) {
+        if (maxPerSecond < 0)
+            throw new IllegalArgumentException("rate must not be negative");
+        this.maxPerSecond = maxPerSecond;
+        return this;
+    }
+
+    /**
+     * Computes n-best list for partial results, which is the default.
+     * N-best is expensive, disable it to compute it only for the final
+     * result, partial results then receive null.
+     */
+    public PartialResultPolicy setPartialNbest(boolean partialNbest) {
+        this.partialNbest = partialNbest;
+        return this;
+    }
+
+    public boolean isOnlyOnChange() {
+        return onlyOnChange;
+    }
+
+    public int getMaxPerSecond() {
+        return maxPerSecond;
+    }
+
+    public boolean isPartialNbest() {
+        return partialNbest;
+    }
+
+    /**
+     * Minimal interval between two partial results in milliseconds.
+     */
+    long getMinIntervalMillis() {
+        return maxPerSecond > 0 ? 1000 / maxPerSecond : 0;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,224 @@
+package edu.cmu.pocketsphinx;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.cmu.pocketsphinx.SpeechRecognizer.OverrunPolicy;
+
+/**
+ * Preallocated single-producer/single-consumer ring of 16-bit PCM samples.
+ * Connects the capture thread with the decoding thread so that a slow decode
+ * step does not stall audio capture.
+ *
+ * <p>Positions are monotonically increasing sample counters, the buffer
+ * never allocates after construction. The only operation where the producer
+ * touches the read position is dropping the oldest samples on overrun, this
+ * is resolved with a compare-and-set so the consumer retries its copy.
+ */
+final class PcmRingBuffer {
+
+    private final short[] data;
+    private final int mask;
+
+    private final AtomicLong readPos = new AtomicLong();
+    private final AtomicLong writePos = new AtomicLong();
+
+    private final AtomicLong overruns = new AtomicLong();
+    private final AtomicLong droppedSamples = new AtomicLong();
+    private final AtomicLong underruns = new AtomicLong();
+
+    private volatile boolean closed;
+    private volatile Thread waitingReader;
+    private volatile Thread waitingWriter;
+
+    /**
+     * Creates a ring holding at least the given number of samples. The
+     * capacity is rounded up to the next power of two.
+     *
+     * @param capacity minimal number of samples the ring can hold
+     */
+    PcmRingBuffer(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive");
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        data = new short[size];
+        mask = size - 1;
+    }
+
+    public int capacity() {
+        return data.length;
+    }
+
+    /**
+     * Returns the number of samples available for reading.
+     */
+    public int available() {
+        return (int) (writePos.get() - readPos.get());
+    }
+
+    /**
+     * Resets positions, counters and the closed flag. Must only be called
+     * when neither producer nor consumer is active.
+     */
+    public void reset() {
+        readPos.set(0);
+        writePos.set(0);
+        overruns.set(0);
+        droppedSamples.set(0);
+        underruns.set(0);
+        closed = false;
+    }
+
+    /**
+     * Marks the end of the stream. The consumer drains the remaining samples
+     * and then receives -1.
+     */
+    public void close() {
+        closed = true;
+        LockSupport.unpark(waitingReader);
+        LockSupport.unpark(waitingWriter);
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Number of times the producer found the ring full.
+     */
+    public long getOverrunCount() {
+        return overruns.get();
+    }
+
+    /**
+     * Number of samples lost because of overruns.
+     */
+    public long getDroppedSamples() {
+        return droppedSamples.get();
+    }
+
+    /**
+     * Number of times the consumer found the ring empty.
+     */
+    public long getUnderrunCount() {
+        return underruns.get();
+    }
+
+    /**
+     * Writes samples into the ring. Called from the producer thread only.
+     *
+     * @return false if the samples could not be stored and the policy is
+     *         {@link OverrunPolicy#ERROR}, or the ring was closed while
+     *         blocking
+     */
+    public boolean write(short[] buffer, int offset, int length,
+                         OverrunPolicy policy) {
+        if (length > data.length) {
+            // Only the most recent part fits anyway.
+            droppedSamples.addAndGet(length - data.length);
+            offset += length - data.length;
+            length = data.length;
+        }
+
+        long w = writePos.get();
+        if (data.length - (int) (w - readPos.get()) < length) {
+            overruns.incrementAndGet();
+            switch (policy) {
+            case ERROR:
+                droppedSamples.addAndGet(length);
+                return false;
+            case DROP_OLDEST:
+                dropOldest(w, length);
+                break;
+            default:
+                if (!awaitSpace(w, length))
+                    return false;
+            }
+        }
+
+        int start = (int) (w & mask);
+        int first = Math.min(length, data.length - start);
+        System.arraycopy(buffer, offset, data, start, first);
+        System.arraycopy(buffer, offset + first, data, 0, length - first);
+        writePos.set(w + length);
+        LockSupport.unpark(waitingReader);
+        return true;
+    }
+
+    private void dropOldest(long w, int length) {
+        for (;;) {
+            long r = readPos.get();
+            int excess = length - (data.length - (int) (w - r));
+            if (excess <= 0)
+                return;
+            if (readPos.compareAndSet(r, r + excess)) {
+                droppedSamples.addAndGet(excess);
+                return;
+            }
+        }
+    }
+
+    private boolean awaitSpace(long w, int length) {
+        waitingWriter = Thread.currentThread();
+        try {
+            while (data.length - (int) (w - readPos.get()) < length) {
+                if (closed || Thread.currentThread().isInterrupted())
+                    return false;
+                LockSupport.park(this);
+            }
+            return true;
+        } finally {
+            waitingWriter = null;
+        }
+    }
+
+    /**
+     * Reads up to {@code length} samples, waiting for data if the ring is
+     * empty. Called from the consumer thread only.
+     *
+     * @return number of samples read, 0 if the thread was interrupted while
+     *         waiting, -1 if the ring is closed and drained
+     */
+    public int read(short[] buffer, int offset, int length) {
+        for (;;) {
+            long r = readPos.get();
+            int n = Math.min(length, (int) (writePos.get() - r));
+            if (n == 0) {
+                if (closed && writePos.get() == readPos.get())
+                    return -1;
+                underruns.incrementAndGet();
+                if (!awaitData())
+                    return 0;
+                continue;
+            }
+
+            int start = (int) (r & mask);
+            int first = Math.min(n, data.length - start);
+            System.arraycopy(data, start, buffer, offset, first);
+            System.arraycopy(data, 0, buffer, offset + first, n - first);
+            // Producer may have dropped the samples we just copied.
+            if (readPos.compareAndSet(r, r + n)) {
+                LockSupport.unpark(waitingWriter);
+                return n;
+            }
+        }
+    }
+
+    private boolean awaitData() {
+        waitingReader = Thread.currentThread();
+        try {
+            while (writePos.get() == readPos.get() && !closed) {
+                if (Thread.currentThread().isInterrupted())
+                    return false;
+                LockSupport.park(this);
+            }
+            return true;
+        } finally {
+            waitingReader = null;
+        }
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -16,7 +16,9 @@ public interface RecognitionListener {
     public void onEndOfSpeech();
 
     /**
-     * Called when partial recognition result is available.
+     * Called when partial recognition result is available. How often this
+     * happens and whether n-best list is provided is controlled by
+     * {@link PartialResultPolicy}, by default nbest is provided.
      */
     public void onPartialResult(Hypothesis hypothesis, NBestList nbest);
 
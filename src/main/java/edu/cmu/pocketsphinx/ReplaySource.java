@@ -0,0 +1,161 @@
+package edu.cmu.pocketsphinx;
+
+import static java.lang.String.format;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Sound source replaying recorded audio, for runs that have to be compared
+ * with each other. Unpaced replay is decoded on the recognition thread in
+ * chunks of fixed size as fast as the decoder goes, so repeated runs give
+ * the same results. Paced replay delivers audio at a multiple of real time
+ * through the capture path, the way the microphone would.
+ *
+ * <p>The source is also a clock that advances with the replayed audio. Set
+ * it with {@link SpeechRecognizer#setClock} so that speech time limits and
+ * partial result intervals do not depend on the speed of the machine.
+ */
+public class ReplaySource implements SpeechRecognizer.SoundSource, SpeechRecognizer.Clock {
+
+    private final short[] samples;
+    private final int offset;
+    private final int length;
+    private final int sampleRate;
+    private double speed;
+
+    private volatile int position;
+    private long startNanos;
+
+    public ReplaySource(short[] samples, int sampleRate) {
+        this(samples, 0, samples.length, sampleRate);
+    }
+
+    /**
+     * Replays a range of the array, which must not be modified while the
+     * source is in use.
+     */
+    public ReplaySource(short[] samples, int offset, int length, int sampleRate) {
+        if (offset < 0 || length < 0 || offset + length > samples.length)
+            throw new IllegalArgumentException("range out of bounds");
+        if (sampleRate <= 0)
+            throw new IllegalArgumentException("sampling rate must be positive");
+        this.samples = samples;
+        this.offset = offset;
+        this.length = length;
+        this.sampleRate = sampleRate;
+    }
+
+    /**
+     * Reads a RAW or WAV file into memory.
+     *
+     * @param sampleRate rate of RAW files, WAV files must declare the same
+     * @throws IOException if the file cannot be read or has another rate
+     */
+    public static ReplaySource fromFile(File file, int sampleRate) throws IOException {
+        MappedFileSource source = new MappedFileSource(file);
+        if (0 != source.getSampleRate() && source.getSampleRate() != sampleRate)
+            throw new IOException(format("%s has sampling rate %d, expected %d",
+                                         file, source.getSampleRate(), sampleRate));
+        short[] samples = new short[source.getSampleCount()];
+        source.start();
+        int n = 0;
+        int nread;
+        while (n < samples.length
+               && (nread = source.read(samples, n, samples.length - n)) > 0)
+            n += nread;
+        source.release();
+        return new ReplaySource(samples, 0, n, sampleRate);
+    }
+
+    /**
+     * Sets replay speed as a multiple of real time, 1 replays at the rate
+     * of recording. Takes effect on the next start.
+     *
+     * @param speed positive multiple or 0 to replay as fast as possible,
+     *              which is the default
+     */
+    public ReplaySource setSpeed(double speed) {
+        if (speed < 0 || Double.isNaN(speed))
+            throw new IllegalArgumentException("speed must not be negative");
+        this.speed = speed;
+        return this;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    public boolean isPaced() {
+        return speed > 0;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public long getDurationMillis() {
+        return (long) length * 1000 / sampleRate;
+    }
+
+    /**
+     * Position of the replay in the audio.
+     */
+    @Override
+    public long currentTimeMillis() {
+        return (long) position * 1000 / sampleRate;
+    }
+
+    @Override
+    public boolean start() {
+        position = 0;
+        startNanos = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Returns the next samples, when paced only once they would have been
+     * recorded.
+     *
+     * @return number of samples read or -1 at the end of audio
+     */
+    @Override
+    public int read(short[] buffer, int offset, int length) {
+        int pos = position;
+        if (pos >= this.length)
+            return -1;
+        int n = Math.min(length, this.length - pos);
+        if (speed > 0)
+            waitFor(pos + n);
+        System.arraycopy(samples, this.offset + pos, buffer, offset, n);
+        position = pos + n;
+        return n;
+    }
+
+    /**
+     * Sleeps until the given number of samples is due. An interrupt ends
+     * the wait early and is preserved for the caller.
+     */
+    private void waitFor(long end) {
+        long due = startNanos + (long) (end * 1e9 / (sampleRate * speed));
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            try {
+                Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+    }
+}
+
+/* vim: set ts=4 sw=4: */
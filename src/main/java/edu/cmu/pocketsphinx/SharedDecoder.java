@@ -0,0 +1,120 @@
+package edu.cmu.pocketsphinx;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reference-counted decoder shared between several recognizers. Acoustic
+ * model, dictionary and mdef are loaded once per decoder, while every search
+ * keeps its own state inside the decoder, so recognizers sharing the decoder
+ * differ only in the search they activate.
+ *
+ * <p>A decoder processes one utterance at a time. A recognizer takes
+ * exclusive ownership for the duration of recognition and other recognizers
+ * cannot start until it is returned.
+ *
+ * <p>Searches registered lazily are kept here rather than in a recognizer,
+ * so that any recognizer sharing the decoder can activate them. They are
+ * compiled by the owner of the decoder when first used.
+ */
+final class SharedDecoder {
+
+    /**
+     * Search registered but not yet loaded into the decoder.
+     */
+    abstract static class PendingSearch {
+        abstract void compile();
+    }
+
+    private final Decoder decoder;
+    private final Map<String, PendingSearch> pendingSearches =
+        new HashMap<String, PendingSearch>();
+    private int refcount;
+    private Object owner;
+
+    SharedDecoder(Decoder decoder) {
+        this.decoder = decoder;
+        this.refcount = 1;
+    }
+
+    Decoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Adds a reference unless the decoder was already deleted.
+     *
+     * @return false if the last reference was released before
+     */
+    synchronized boolean retain() {
+        if (0 == refcount)
+            return false;
+        refcount++;
+        return true;
+    }
+
+    /**
+     * Drops a reference, the native decoder is deleted with the last one.
+     */
+    synchronized void release() {
+        if (0 == refcount)
+            return;
+        if (0 == --refcount)
+            decoder.delete();
+    }
+
+    synchronized int getRefCount() {
+        return refcount;
+    }
+
+    /**
+     * Takes exclusive ownership for recognition. Reentrant for the same
+     * owner.
+     *
+     * @return false if the decoder is used by another owner
+     */
+    synchronized boolean claim(Object newOwner) {
+        if (null != owner && owner != newOwner)
+            return false;
+        owner = newOwner;
+        return true;
+    }
+
+    synchronized void unclaim(Object currentOwner) {
+        if (owner == currentOwner)
+            owner = null;
+    }
+
+    synchronized void addPendingSearch(String name, PendingSearch search) {
+        pendingSearches.put(name, search);
+    }
+
+    synchronized void removePendingSearch(String name) {
+        pendingSearches.remove(name);
+    }
+
+    synchronized boolean isSearchPending(String name) {
+        return pendingSearches.containsKey(name);
+    }
+
+    /**
+     * Loads the search into the decoder if it was registered lazily. The
+     * search is compiled outside of the lock, the claim keeps other owners
+     * away from the decoder meanwhile.
+     *
+     * @throws IllegalStateException if the decoder is not claimed by the
+     *         given owner
+     */
+    void compilePendingSearch(Object currentOwner, String name) {
+        PendingSearch search;
+        synchronized (this) {
+            if (owner != currentOwner)
+                throw new IllegalStateException("decoder is not claimed");
+            search = pendingSearches.remove(name);
+        }
+        if (null != search)
+            search.compile();
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -33,14 +33,22 @@ package edu.cmu.pocketsphinx;
 import static java.lang.String.format;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PipedOutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
 
 import android.media.AudioFormat;
 import android.media.AudioRecord;
@@ -67,28 +75,134 @@ public class SpeechRecognizer {
 
   protected static final String TAG = SpeechRecognizer.class.getSimpleName();
 
+  /**
+   * Default read size in samples at 16 kHz, scaled for other rates.
+   *
+   * @deprecated shared by all recognizers, use {@link #setChunkSize}
+   */
+  @Deprecated
   public static int BUFFER_SIZE = 2 * 1024;
+
+  /**
+   * Default minimal size of the recorder buffer in bytes.
+   *
+   * @deprecated shared by all recognizers, use {@link #setInputBufferSize}
+   */
+  @Deprecated
   public static int INPUT_SIZE = 16 * 1024;
 
   public static boolean DEBUG_MSGS_ALLOWED = true;
 
   private final Decoder decoder;
+  private final SharedDecoder sharedDecoder;
+  // Set once this recognizer has dropped its reference to the decoder.
+  private final AtomicBoolean released = new AtomicBoolean();
+  private String searchName;
 
   private RecognizerThread recognizerThread;
   private final Handler mainHandler;
+  private final EventDispatcher dispatcher;
+  private static final int EVENT_QUEUE_SIZE = 32;
   protected final Collection<RecognitionListener> listeners = new HashSet<RecognitionListener>();
+  // Snapshot of listeners, rebuilt on change so that delivery never copies.
+  private volatile RecognitionListener[] listenerSnapshot = {};
+
+  private static final int RESULT_POOL_SIZE = 8;
+  private static final int HYP_BUFFER_SIZE = 1024;
+  private final ResultEvent[] resultPool = new ResultEvent[RESULT_POOL_SIZE];
+  private int resultPoolSize;
 
   private final int sampleRate;
   private long minSpeechTimeMilis = 2000;
   private long maxSpeechTimeMilis = 5000;
 
+  private int chunkSize = 0;
+  private int inputBufferSize = 0;
+  private boolean adaptiveBuffering;
+
+  private VoiceActivityGate voiceGate;
+
+  private AudioRecorder audioRecorder;
+  // Recorder of the running recognition, null if recording is disabled.
+  private volatile AudioRecorder activeRecorder;
+
+  private volatile Clock clock = SYSTEM_CLOCK;
+
+  private volatile UtteranceMetrics.Listener metricsListener;
+  private volatile UtteranceMetrics lastMetrics;
+  // Recorder of the running recognition, null if metrics are disabled.
+  private volatile MetricsRecorder metricsRecorder;
+
+  private int switchReplayMillis = 300;
+  private AudioHistory history;
+
+  private int ringBufferSize = 0;
+  private OverrunPolicy overrunPolicy = OverrunPolicy.BLOCK;
+  private PcmRingBuffer ringBuffer;
+  private DirectPcmQueue directQueue;
+  private boolean directAudio;
+  private volatile AudioPipeline lastCapture;
+
+  private File grammarCacheDir;
+  private File languageModelCacheDir;
+  // Model names of searches over model sets, in the order of the set.
+  private final Map<String, String[]> ngramSets = new HashMap<String, String[]>();
+  private final Map<String, AppliedMix> ngramMixes = new HashMap<String, AppliedMix>();
+  private static final byte[] DMP_SIGNATURE = {
+      'D', 'a', 'r', 'p', 'a', ' ', 'T', 'r', 'i', 'g', 'r', 'a', 'm', ' ', 'L', 'M'
+  };
+
+  private final Map<String, PartialResultPolicy> partialPolicies =
+      new HashMap<String, PartialResultPolicy>();
+  private PartialResultPolicy defaultPartialPolicy = PartialResultPolicy.defaultPolicy();
+
   protected SpeechRecognizer(Config config) {
     sampleRate = (int) config.getFloat("-samprate");
     if (config.getFloat("-samprate") != sampleRate)
       throw new IllegalArgumentException("sampling rate must be integer");
 
-    decoder = new Decoder(config);
+    sharedDecoder = new SharedDecoder(new Decoder(config));
+    decoder = sharedDecoder.getDecoder();
+    mainHandler = new Handler(Looper.getMainLooper());
+    dispatcher = new EventDispatcher(mainExecutor(mainHandler), EVENT_QUEUE_SIZE);
+  }
+
+  /**
+   * Creates recognizer on top of a decoder shared with other recognizers.
+   * The caller must have retained a reference for this recognizer.
+   */
+  SpeechRecognizer(Config config, SharedDecoder shared) {
+    sampleRate = (int) config.getFloat("-samprate");
+    if (config.getFloat("-samprate") != sampleRate)
+      throw new IllegalArgumentException("sampling rate must be integer");
+
+    sharedDecoder = shared;
+    decoder = shared.getDecoder();
     mainHandler = new Handler(Looper.getMainLooper());
+    dispatcher = new EventDispatcher(mainExecutor(mainHandler), EVENT_QUEUE_SIZE);
+  }
+
+  /**
+   * Creates recognizer delivering events through the executor instead of
+   * the main looper, for running on a host without the Android runtime.
+   */
+  SpeechRecognizer(Config config, Executor eventExecutor) {
+    this(config, new SharedDecoder(new Decoder(config)), eventExecutor);
+  }
+
+  /**
+   * Same as above on top of a shared decoder, the caller must have
+   * retained a reference for this recognizer.
+   */
+  SpeechRecognizer(Config config, SharedDecoder shared, Executor eventExecutor) {
+    sampleRate = (int) config.getFloat("-samprate");
+    if (config.getFloat("-samprate") != sampleRate)
+      throw new IllegalArgumentException("sampling rate must be integer");
+
+    sharedDecoder = shared;
+    decoder = shared.getDecoder();
+    mainHandler = null;
+    dispatcher = new EventDispatcher(eventExecutor, EVENT_QUEUE_SIZE);
   }
 
   /**
@@ -101,7 +215,103 @@ public class SpeechRecognizer {
     }
     sampleRate = -1;
     decoder = null;
+    sharedDecoder = null;
     mainHandler = null;
+    dispatcher = null;
+  }
+
+  private static Executor mainExecutor(final Handler handler) {
+    return new Executor() {
+      public void execute(Runnable command) {
+        handler.post(command);
+      }
+    };
+  }
+
+  /**
+   * Sets executor delivering events to listeners, by default they are
+   * delivered on the main thread. Events are delivered one at a time in
+   * order whatever the executor.
+   *
+   * @param executor executor or null for the main thread
+   * @throws IllegalStateException if executor is null and the recognizer
+   *         was created without a main thread
+   */
+  public void setEventExecutor(Executor executor) {
+    if (null == executor && null == mainHandler)
+      throw new IllegalStateException("recognizer has no main thread, executor is required");
+    dispatcher.setExecutor(null != executor ? executor : mainExecutor(mainHandler));
+  }
+
+  /**
+   * Returns time between recording of audio and delivery of the last event
+   * about it to the listeners.
+   */
+  public long getDispatchLagMillis() {
+    return dispatcher.getLastLagMillis();
+  }
+
+  /**
+   * Returns the largest dispatch lag of the current or last recognition.
+   */
+  public long getMaxDispatchLagMillis() {
+    return dispatcher.getMaxLagMillis();
+  }
+
+  /**
+   * Returns number of partial results dropped because listeners did not
+   * keep up and the event queue was full.
+   */
+  public long getDroppedEventCount() {
+    return dispatcher.getDroppedCount();
+  }
+
+  /**
+   * Returns number of partial results replaced by a newer one before they
+   * were delivered.
+   */
+  public long getCoalescedEventCount() {
+    return dispatcher.getCoalescedCount();
+  }
+
+  /**
+   * Sets clock measuring speech time limits and partial result intervals.
+   * Takes effect on the next start.
+   *
+   * @param clock clock or null for the system clock
+   * @see ReplaySource
+   */
+  public void setClock(Clock clock) {
+    this.clock = null != clock ? clock : SYSTEM_CLOCK;
+  }
+
+  /**
+   * Enables per-utterance metrics. Without a listener nothing is measured.
+   * Takes effect on the next start.
+   *
+   * @param listener listener called after every utterance or null to
+   *                 disable metrics
+   */
+  public void setMetricsListener(UtteranceMetrics.Listener listener) {
+    this.metricsListener = listener;
+  }
+
+  /**
+   * Returns metrics of the last finished utterance or null if metrics are
+   * disabled or no utterance finished yet.
+   */
+  public UtteranceMetrics getLastUtteranceMetrics() {
+    return lastMetrics;
+  }
+
+  /**
+   * Queues event for the listeners, stamped with the estimated time the
+   * audio it refers to was recorded.
+   */
+  private void post(RecognitionEvent event) {
+    AudioPipeline capture = lastCapture;
+    long latency = null == capture ? 0 : capture.getLatencyMillis();
+    dispatcher.post(event, System.nanoTime() - latency * 1000000);
   }
 
   public void setMinSpeechTime(long timeMilis) {
@@ -111,12 +321,188 @@ public class SpeechRecognizer {
     this.maxSpeechTimeMilis = timeMilis;
   }
 
+  /**
+   * Sets how many samples are read from the microphone at once, which is
+   * the main part of the recognition latency. Takes effect on the next
+   * start.
+   *
+   * @param samples read size, 0 for 128 ms of audio
+   */
+  public void setChunkSize(int samples) {
+    if (samples < 0)
+      throw new IllegalArgumentException("chunk size must not be negative");
+    this.chunkSize = samples;
+  }
+
+  /**
+   * Returns read size in samples, the upper bound if buffering is adaptive.
+   */
+  public int getChunkSize() {
+    if (chunkSize > 0)
+      return chunkSize;
+    return Math.max(1, (int) ((long) BUFFER_SIZE * Math.max(sampleRate, 1) / 16000));
+  }
+
+  /**
+   * Sets the size of the recorder buffer. The recorder is always created
+   * with at least the minimal buffer size reported by
+   * {@link AudioRecord#getMinBufferSize} and room for two reads. Takes
+   * effect on the next start.
+   *
+   * @param bytes buffer size, 0 for the default
+   */
+  public void setInputBufferSize(int bytes) {
+    this.inputBufferSize = bytes;
+  }
+
+  /**
+   * Lets read size follow the decoding load. Cheap searches such as keyword
+   * spotting are fed about 10 ms at a time for low latency, expensive ones
+   * get larger reads up to {@link #getChunkSize} so that per-call overhead
+   * is amortized. Takes effect on the next start.
+   */
+  public void setAdaptiveBuffering(boolean adaptive) {
+    this.adaptiveBuffering = adaptive;
+  }
+
+  /**
+   * Returns latency achieved by the current or last recognition: time
+   * between audio being recorded and decoded, including the read size,
+   * buffered audio and decoding time. Returns 0 for offline sources.
+   */
+  public long getEffectiveLatencyMillis() {
+    AudioPipeline capture = lastCapture;
+    return null == capture ? 0 : capture.getLatencyMillis();
+  }
+
+  /**
+   * Sets detector that keeps silence away from the decoder. Only audio
+   * around detected speech is decoded, which saves most of the CPU time in
+   * always-listening applications. Applies to microphone input, takes
+   * effect on the next start.
+   *
+   * @param gate gate used by this recognizer only, or null to decode all
+   *             audio
+   */
+  public void setVoiceActivityGate(VoiceActivityGate gate) {
+    this.voiceGate = gate;
+  }
+
+  /**
+   * Returns the gate with statistics of the last recognition or null.
+   */
+  public VoiceActivityGate getVoiceActivityGate() {
+    return voiceGate;
+  }
+
+  /**
+   * Sets recorder saving utterance audio to files. Unlike the raw log of
+   * the decoder, files are written on a background thread. Takes effect on
+   * the next start. The recognizer closes the recorder on
+   * {@link #shutdown}, which stops its thread once the queued utterances
+   * are written.
+   *
+   * @param recorder recorder or null to disable recording
+   */
+  public void setAudioRecorder(AudioRecorder recorder) {
+    this.audioRecorder = recorder;
+  }
+
+  public AudioRecorder getAudioRecorder() {
+    return audioRecorder;
+  }
+
+  /**
+   * Sets how much audio decoded before a {@link #switchSearch} call is
+   * decoded again by the new search. Audio decoded between the call and the
+   * actual switch is always replayed. Takes effect on the next start.
+   */
+  public void setSwitchReplay(int millis) {
+    if (millis < 0)
+      throw new IllegalArgumentException("replay must not be negative");
+    this.switchReplayMillis = millis;
+  }
+
+  /**
+   * Sets the size of the buffer between audio capture and decoding. By
+   * default it holds two seconds of audio. Takes effect on the next start.
+   *
+   * @param samples number of samples, 0 to use the default
+   */
+  public void setRingBufferSize(int samples) {
+    this.ringBufferSize = samples;
+  }
+
+  /**
+   * Sets what happens when the decoder falls behind and the capture buffer
+   * is full: block capture, drop the oldest audio, or stop recognition and
+   * report an error through {@link RecognitionListener#onError}.
+   */
+  public void setOverrunPolicy(OverrunPolicy policy) {
+    this.overrunPolicy = policy;
+  }
+
+  /**
+   * Returns how many times capture found the buffer full during the last
+   * recognition.
+   */
+  public long getOverrunCount() {
+    AudioPipeline capture = lastCapture;
+    return null == capture ? 0 : capture.getOverrunCount();
+  }
+
+  /**
+   * Returns how many samples were lost because of overruns during the last
+   * recognition.
+   */
+  public long getDroppedSamples() {
+    AudioPipeline capture = lastCapture;
+    return null == capture ? 0 : capture.getDroppedSamples();
+  }
+
+  /**
+   * Returns how many times the decoder had to wait for audio during the last
+   * recognition.
+   */
+  public long getUnderrunCount() {
+    AudioPipeline capture = lastCapture;
+    return null == capture ? 0 : capture.getUnderrunCount();
+  }
+
+  /**
+   * Sets partial result policy for the given search. Searches without own
+   * policy use the default one.
+   *
+   * @param searchName search name or null to change the default policy
+   */
+  public void setPartialResultPolicy(String searchName, PartialResultPolicy policy) {
+    synchronized (partialPolicies) {
+      if (null == searchName)
+        defaultPartialPolicy = policy;
+      else if (null == policy)
+        partialPolicies.remove(searchName);
+      else
+        partialPolicies.put(searchName, policy);
+    }
+  }
+
+  /**
+   * Returns partial result policy effective for the given search.
+   */
+  public PartialResultPolicy getPartialResultPolicy(String searchName) {
+    synchronized (partialPolicies) {
+      PartialResultPolicy policy = partialPolicies.get(searchName);
+      return null != policy ? policy : defaultPartialPolicy;
+    }
+  }
+
   /**
    * Adds listener.
    */
   public void addListener(RecognitionListener listener) {
     synchronized (listeners) {
       listeners.add(listener);
+      listenerSnapshot = listeners.toArray(new RecognitionListener[listeners.size()]);
     }
   }
 
@@ -126,21 +512,99 @@ public class SpeechRecognizer {
   public void removeListener(RecognitionListener listener) {
     synchronized (listeners) {
       listeners.remove(listener);
+      listenerSnapshot = listeners.toArray(new RecognitionListener[listeners.size()]);
     }
   }
 
   /**
-   * Starts recognition. Does nothing if recognition is active.
+   * Enables zero-copy audio path. Audio is captured into direct buffers and
+   * the decoder reads them in place, which saves copying every chunk through
+   * a Java array. Only sources implementing {@link DirectSoundSource} support
+   * it, and {@link RecognitionListener#onRead} is not called in this mode.
+   * Takes effect on the next start.
+   */
+  public void setDirectAudio(boolean directAudio) {
+    this.directAudio = directAudio;
+  }
+
+  private AudioPipeline createPipeline(SoundSource source) {
+    if (source instanceof MappedFileSource
+        || (source instanceof ReplaySource && !((ReplaySource) source).isPaced()))
+      return new OfflinePipeline(source);
+
+    VoiceActivityGate gate = voiceGate;
+    if (null != gate)
+      gate.reset(sampleRate);
+    int chunk = getChunkSize();
+    // Room for the replay window and a few chunks decoded before the switch.
+    int historySize = sampleRate * switchReplayMillis / 1000 + 4 * chunk;
+    if (null == history || history.capacity() != historySize)
+      history = new AudioHistory(historySize);
+    else
+      history.reset();
+    ChunkSizeController chunking = new ChunkSizeController(sampleRate, chunk, adaptiveBuffering);
+    int size = ringBufferSize > 0 ? ringBufferSize : 2 * Math.max(sampleRate, chunk);
+    if (directAudio && source instanceof DirectSoundSource) {
+      int chunks = Math.max(2, (size + chunk - 1) / chunk);
+      if (null == directQueue || directQueue.capacity() < size
+          || directQueue.chunkBytes() != 2 * chunk)
+        directQueue = new DirectPcmQueue(chunks, chunk);
+      else
+        directQueue.reset();
+      return new DirectCaptureThread((DirectSoundSource) source, directQueue,
+          overrunPolicy, chunking, gate);
+    }
+
+    if (null == ringBuffer || ringBuffer.capacity() < size)
+      ringBuffer = new PcmRingBuffer(size);
+    else
+      ringBuffer.reset();
+    return new RingCaptureThread(source, ringBuffer, overrunPolicy, chunking, gate);
+  }
+
+  /**
+   * Starts recognition. Does nothing if recognition is active or the
+   * decoder is shared and another recognizer is using it.
    * 
    * @return true if recognition was actually started
    */
   public boolean startListening(String searchName) {
+    return startListening(searchName, false);
+  }
+
+  /**
+   * Starts a continuous session. Audio is recorded without interruption
+   * until {@link #stop} or {@link #cancel}, every utterance ends when the
+   * decoder detects the end of speech and its final result is delivered
+   * while the microphone keeps recording, so nothing said right after it
+   * is lost. The maximal speech time does not apply. Does nothing if
+   * recognition is active or the decoder is used by another recognizer.
+   *
+   * @return true if the session was actually started
+   */
+  public boolean startContinuousListening(String searchName) {
+    return startListening(searchName, true);
+  }
+
+  private boolean startListening(String searchName, boolean continuous) {
     if (null != recognizerThread && recognizerThread.isAlive())
       return false;
 
+    RecognizerThread thread = new RecognizerThread(new AudioRecordSource(), searchName);
+    thread.continuous = continuous;
+    if (!sharedDecoder.claim(thread))
+      return false;
+
     if (DEBUG_MSGS_ALLOWED) Log.i(TAG, format("Start recognition \"%s\"", searchName));
-    decoder.setSearch(searchName);
-    recognizerThread = new RecognizerThread(new AudioRecordSource());
+    try {
+      if (!isSearchPending(searchName))
+        decoder.setSearch(searchName);
+    } catch (RuntimeException e) {
+      sharedDecoder.unclaim(thread);
+      throw e;
+    }
+    this.searchName = searchName;
+    recognizerThread = thread;
     recognizerThread.start();
     return true;
   }
@@ -157,6 +621,26 @@ public class SpeechRecognizer {
           return false;
   }
 
+  /**
+   * Switches the running recognition to another search without stopping
+   * the microphone, for example from a keyphrase to a command grammar. The
+   * current utterance is finished and its final result delivered, then the
+   * new search decodes the recently heard audio again and continues with
+   * the live stream, so the first command word is not clipped.
+   *
+   * @return false if recognition is not active, start it with
+   *         {@link #startListening} instead
+   * @see #setSwitchReplay
+   */
+  public boolean switchSearch(String searchName) {
+    RecognizerThread thread = recognizerThread;
+    if (null == thread || !thread.isAlive())
+      return false;
+    thread.requestSwitch(searchName);
+    if (DEBUG_MSGS_ALLOWED) Log.i(TAG, format("Switch to search \"%s\"", searchName));
+    return true;
+  }
+
   /**
    * Stops recognition. All listeners should receive final result if there is
    * any. Does nothing if recognition is not active.
@@ -186,57 +670,227 @@ public class SpeechRecognizer {
 
   /**
    * Cancels recogition. Listeners do not recevie final result. Does nothing if
-   * recognition is not active.
+   * recognition is not active. Returns once the recognition thread has
+   * finished, unless called from that thread.
    * 
    * @return true if recognition was actually canceled
    */
   public boolean cancel() {
-    if (recognizerThread != null) {
-      recognizerThread.cancelled = true;
+    RecognizerThread thread = recognizerThread;
+    if (thread != null) {
+      thread.cancelled = true;
+      // The thread holds the decoder claim until it returns, wait for it
+      // so that recognition can be started again right away.
+      if (thread != Thread.currentThread()) {
+        thread.interrupt();
+        try {
+          thread.join();
+        } catch (InterruptedException e) {
+          // Restore the interrupted status.
+          Thread.currentThread().interrupt();
+        }
+      }
     }
     if (DEBUG_MSGS_ALLOWED) Log.i(TAG, "Cancel recognition");
-    mainHandler.removeCallbacksAndMessages(null);
+    dispatcher.clear();
     recognizerThread = null;
     return true;
   }
     
     /**
-     * Gets name of the currently active search.
+     * Gets name of the currently active search. With a shared decoder this is
+     * the search last started by this recognizer.
      * 
      * @return active search name or null if no search was started
      */
     public String getSearchName() {
-        return decoder.getSearch();
+        return null != searchName ? searchName : decoder.getSearch();
+    }
+
+    /**
+     * Cancels recognition and releases this recognizer's reference to the
+     * decoder. The native decoder is deleted when the last recognizer sharing
+     * it is shut down. The audio recorder, if set, is closed. Calling it
+     * again does nothing. The recognizer must not be used afterwards.
+     */
+    public void shutdown() {
+        cancel();
+        AudioRecorder recorder = audioRecorder;
+        if (null != recorder)
+            recorder.close();
+        if (released.compareAndSet(false, true))
+            sharedDecoder.release();
     }
 
     public void addFsgSearch(String searchName, FsgModel fsgModel) {
+        removePendingSearch(searchName);
         decoder.setFsg(searchName, fsgModel);
     }
 
     /**
-     * Adds searches based on JSpeech grammar.
+     * Sets directory where grammars compiled to FSG are cached. A cached FSG
+     * is keyed by the checksum of the grammar file, so later runs load it
+     * without parsing and compiling the grammar again. Grammars imported by
+     * the file are not part of the checksum.
+     *
+     * @param dir cache directory or null to disable caching
+     */
+    public void setGrammarCacheDir(File dir) {
+        this.grammarCacheDir = dir;
+    }
+
+    /**
+     * Adds searches based on JSpeech grammar. The grammar is compiled when
+     * the search is started for the first time.
      * 
      * @param name
      *            search name
      * @param file
      *            JSGF file
      */
-    public void addGrammarSearch(String name, File file) {
-        Log.i(TAG, format("Load JSGF %s", file));
-        decoder.setJsgfFile(name, file.getPath());
+    public void addGrammarSearch(final String name, final File file) {
+        addPendingSearch(name, new SharedDecoder.PendingSearch() {
+            void compile() {
+                compileGrammar(name, file);
+            }
+        });
     }
 
     /**
-     * Adds search based on N-gram language model.
+     * Adds search based on N-gram language model. The model is loaded when
+     * the search is started for the first time.
      * 
      * @param name
      *            search name
      * @param file
      *            N-gram model file
      */
-    public void addNgramSearch(String name, File file) {
-        Log.i(TAG, format("Load N-gram model %s", file));
-        decoder.setLmFile(name, file.getPath());
+    public void addNgramSearch(final String name, final File file) {
+        addPendingSearch(name, new SharedDecoder.PendingSearch() {
+            void compile() {
+                loadLanguageModel(name, file);
+            }
+        });
+    }
+
+    /**
+     * Sets directory where ARPA language models converted to binary DMP
+     * format are cached. Binary models are mapped from the file when -mmap
+     * is enabled, so later runs load them in no time and processes using
+     * the same model share its pages. A cached model is keyed by the path,
+     * size and modification time of the ARPA file. Models can also be
+     * converted ahead of time with sphinx_lm_convert, binary models are
+     * detected by their header whatever the cache.
+     *
+     * @param dir cache directory or null to disable caching
+     */
+    public void setLanguageModelCacheDir(File dir) {
+        this.languageModelCacheDir = dir;
+    }
+
+    /**
+     * Adds search over a set of N-gram models, loaded when the search is
+     * started for the first time. All models share one search, so switching
+     * between them with {@link #setNgramMix} only changes the scores and
+     * costs nothing compared to loading a model. The first model is used
+     * until a mix is set.
+     *
+     * @param name   search name
+     * @param models model files keyed by the names used in mixes
+     */
+    public void addNgramSetSearch(final String name, Map<String, File> models) {
+        if (models.isEmpty())
+            throw new IllegalArgumentException("no models given for " + name);
+        final Map<String, File> files = new LinkedHashMap<String, File>(models);
+        addPendingSearch(name, new SharedDecoder.PendingSearch() {
+            void compile() {
+                loadLanguageModelSet(name, files);
+            }
+        });
+        synchronized (ngramSets) {
+            ngramSets.put(name, files.keySet().toArray(new String[files.size()]));
+        }
+    }
+
+    /**
+     * Sets models used by a search added with {@link #addNgramSetSearch}.
+     * The mix takes effect when the next utterance of the search starts,
+     * an utterance in progress keeps its models.
+     *
+     * @throws IllegalArgumentException if the search is not over a model
+     *                                  set or the mix names other models
+     */
+    public void setNgramMix(String searchName, NgramMix mix) {
+        synchronized (ngramSets) {
+            String[] names = ngramSets.get(searchName);
+            if (null == names)
+                throw new IllegalArgumentException(
+                    format("search %s is not over a model set", searchName));
+            for (String model : mix.getNames()) {
+                if (!Arrays.asList(names).contains(model))
+                    throw new IllegalArgumentException(
+                        format("search %s has no model %s", searchName, model));
+            }
+            ngramMixes.put(searchName, new AppliedMix(mix, names));
+        }
+    }
+
+    /**
+     * Returns mix set for the search or null if none was set.
+     */
+    public NgramMix getNgramMix(String searchName) {
+        synchronized (ngramSets) {
+            AppliedMix applied = ngramMixes.get(searchName);
+            return null != applied ? applied.mix : null;
+        }
+    }
+
+    /**
+     * Mix with weights laid out for the native set.
+     */
+    private static final class AppliedMix {
+        final NgramMix mix;
+        final ByteBuffer weights;
+
+        AppliedMix(NgramMix mix, String[] names) {
+            this.mix = mix;
+            if (mix.isInterpolated()) {
+                weights = ByteBuffer.allocateDirect(4 * names.length)
+                    .order(ByteOrder.nativeOrder());
+                for (String name : names)
+                    weights.putFloat(mix.getWeight(name));
+            } else {
+                weights = null;
+            }
+        }
+    }
+
+    private void loadLanguageModelSet(String name, Map<String, File> files) {
+        NGramModel set = null;
+        try {
+            for (Map.Entry<String, File> entry : files.entrySet()) {
+                File file = resolveLanguageModel(entry.getValue());
+                Log.i(TAG, format("Load N-gram model %s as %s", file, entry.getKey()));
+                NGramModel lm = decoder.readLm(file.getPath(), isBinaryLanguageModel(file));
+                if (null == lm)
+                    throw new IllegalArgumentException(format("Failed to load %s", file));
+                try {
+                    if (null == set)
+                        set = decoder.newLmSet(lm, entry.getKey());
+                    else if (decoder.lmSetAdd(set, lm, entry.getKey()) < 0)
+                        set = null;
+                } finally {
+                    lm.delete();
+                }
+                if (null == set)
+                    throw new IllegalArgumentException(
+                        format("Failed to add %s to set of %s", file, name));
+            }
+            decoder.setLm(name, set);
+        } finally {
+            if (null != set)
+                set.delete();
+        }
     }
 
     /**
@@ -248,6 +902,7 @@ public class SpeechRecognizer {
      *            search phrase
      */
     public void addKeyphraseSearch(String name, String phrase) {
+        removePendingSearch(name);
         decoder.setKeyphrase(name, phrase);
     }
 
@@ -261,6 +916,7 @@ public class SpeechRecognizer {
 	 *            search phrase
 	 */
 	public void addKeywordSearch(String name, String phrase) {
+		removePendingSearch(name);
 		decoder.setKws(name, phrase);
 	}
 
@@ -273,6 +929,24 @@ public class SpeechRecognizer {
     public Decoder getDecoder() {
         return decoder;
     }
+
+    /**
+     * Adds words to the decoder dictionary. Phonetic context tables are
+     * rebuilt once after the last word, not for every word.
+     *
+     * @param pronunciations phones separated by spaces keyed by word
+     * @throws IllegalArgumentException if a word could not be added, the
+     *         words before it are added
+     */
+    public void addWords(Map<String, String> pronunciations) {
+        int left = pronunciations.size();
+        for (Map.Entry<String, String> entry : pronunciations.entrySet()) {
+            left--;
+            if (decoder.addWord(entry.getKey(), entry.getValue(), 0 == left ? 1 : 0) < 0)
+                throw new IllegalArgumentException(format(
+                    "cannot add word %s with phones %s", entry.getKey(), entry.getValue()));
+        }
+    }
     
 
     /**
@@ -287,58 +961,288 @@ public class SpeechRecognizer {
      *            oh mighty computer /1e-20/
      *            how do you do /1e-10/
      *            </code>
+     *            The file is read when the search is started for the first time.
      */
-    public void addKeywordSearch(String name, File file) {
-        decoder.setKws(name, file.getPath());
+    public void addKeywordSearch(final String name, final File file) {
+        addPendingSearch(name, new SharedDecoder.PendingSearch() {
+            void compile() {
+                decoder.setKws(name, file.getPath());
+            }
+        });
     }
     
     /**
-     * Adds a search to look for the phonemes
+     * Adds a search to look for the phonemes. The model is loaded when the
+     * search is started for the first time.
      *
      * @param name
      *          search name
      * @param phonetic bigram model
      * 
      */
-    public void addAllphoneSearch(String name, File file) {
-        decoder.setAllphoneFile(name, file.getPath());
+    public void addAllphoneSearch(final String name, final File file) {
+        addPendingSearch(name, new SharedDecoder.PendingSearch() {
+            void compile() {
+                decoder.setAllphoneFile(name, file.getPath());
+            }
+        });
     }
-  public interface SoundSource {
-	    int read(short[] buffer, int offset, int length);
-	    boolean start();
-	    void stop();
-	    void release();
-	  }
 
-	  class InputStreamSource implements SoundSource {
-	    private final InputStream stream;
-	    private boolean finished;
-	    InputStreamSource(InputStream stream) {
-	      this.stream = stream;
-	    }
+    private void addPendingSearch(String name, SharedDecoder.PendingSearch search) {
+        forgetNgramSet(name);
+        sharedDecoder.addPendingSearch(name, search);
+    }
 
-	    @Override
-	    public int read(short[] buffer, int offset, int length) {
-	      if (finished) {
-	        return 0;
-	      }
+    private void removePendingSearch(String name) {
+        forgetNgramSet(name);
+        sharedDecoder.removePendingSearch(name);
+    }
 
-	      try {
-	        int bytelength = 2 * length;
-	        byte[] barr = new byte[bytelength];
-	        int nread = stream.read(barr);
-	        if (nread == -1) {
-	          finished = true;
-	          Thread.currentThread().interrupt();
-	          return 0;
-	        }
+    /**
+     * Drops model set state of a search that is being replaced.
+     */
+    private void forgetNgramSet(String name) {
+        synchronized (ngramSets) {
+            ngramSets.remove(name);
+            ngramMixes.remove(name);
+        }
+    }
 
-	        ByteBuffer.wrap(barr).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(buffer, offset, nread/2);
-	        return nread/2;
-	      } catch (IOException e) {
-	        throw new IllegalStateException(e);
-	      }
-	    }
+    private boolean isSearchPending(String name) {
+        return sharedDecoder.isSearchPending(name);
+    }
+
+    private void compileGrammar(String name, File file) {
+        Config config = decoder.getConfig();
+        float lw = config.getFloat("-lw");
+        File cached = null;
+        if (null != grammarCacheDir) {
+            try {
+                cached = new File(grammarCacheDir, format("%s-%08x.fsg", name,
+                    grammarChecksum(file, lw, config.getString("-toprule"))));
+            } catch (IOException e) {
+                Log.w(TAG, format("Failed to checksum %s", file), e);
+            }
+        }
+
+        if (null != cached && cached.isFile()) {
+            Log.i(TAG, format("Load cached FSG %s", cached));
+            decoder.setFsg(name, new FsgModel(cached.getPath(), decoder.getLogmath(), lw));
+            return;
+        }
+
+        Log.i(TAG, format("Load JSGF %s", file));
+        if (null == cached) {
+            decoder.setJsgfFile(name, file.getPath());
+            return;
+        }
+
+        FsgModel fsg = decoder.compileJsgf(file.getPath());
+        if (null == fsg)
+            throw new IllegalArgumentException(format("Failed to compile %s", file));
+        grammarCacheDir.mkdirs();
+        // Write under a temporary name so that a crash never leaves a
+        // truncated FSG behind.
+        File tmp = new File(cached.getPath() + ".tmp");
+        fsg.writefile(tmp.getPath());
+        if (!tmp.renameTo(cached))
+            tmp.delete();
+        decoder.setFsg(name, fsg);
+    }
+
+    private void loadLanguageModel(String name, File file) {
+        setLmFile(decoder, name, resolveLanguageModel(file));
+    }
+
+    /**
+     * Returns cached binary model for the file if caching is enabled,
+     * converting it first if needed, or the file itself.
+     */
+    private File resolveLanguageModel(File file) {
+        File cached = null;
+        if (null != languageModelCacheDir && !isBinaryLanguageModel(file)) {
+            String key = format("%s %d %d", file.getAbsolutePath(), file.length(),
+                                file.lastModified());
+            CRC32 crc = new CRC32();
+            crc.update(key.getBytes());
+            cached = new File(languageModelCacheDir,
+                              format("%s-%08x.dmp", file.getName(), crc.getValue()));
+            if (!cached.isFile() && !convertLanguageModel(file, cached))
+                cached = null;
+        }
+        return null != cached ? cached : file;
+    }
+
+    private boolean convertLanguageModel(File file, File cached) {
+        Log.i(TAG, format("Convert N-gram model %s to %s", file, cached));
+        languageModelCacheDir.mkdirs();
+        // Write under a temporary name so that a crash never leaves a
+        // truncated model behind.
+        File tmp = new File(cached.getPath() + ".tmp");
+        if (decoder.convertLm(file.getPath(), tmp.getPath()) < 0 || !tmp.renameTo(cached)) {
+            Log.w(TAG, format("Failed to convert %s, loading it as is", file));
+            tmp.delete();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds N-gram search loading binary models without trying to parse
+     * them as text first.
+     */
+    static void setLmFile(Decoder decoder, String name, File file) {
+        if (isBinaryLanguageModel(file)) {
+            Log.i(TAG, format("Load binary N-gram model %s", file));
+            if (decoder.setLmDmp(name, file.getPath()) < 0)
+                throw new IllegalArgumentException(format("Failed to load %s", file));
+        } else {
+            Log.i(TAG, format("Load N-gram model %s", file));
+            decoder.setLmFile(name, file.getPath());
+        }
+    }
+
+    /**
+     * Returns whether the file starts with the DMP header, a length and
+     * the "Darpa Trigram LM" signature.
+     */
+    static boolean isBinaryLanguageModel(File file) {
+        byte[] header = new byte[4 + DMP_SIGNATURE.length];
+        try {
+            InputStream stream = new FileInputStream(file);
+            try {
+                int n = 0;
+                int nread;
+                while (n < header.length
+                       && (nread = stream.read(header, n, header.length - n)) != -1)
+                    n += nread;
+                if (n < header.length)
+                    return false;
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        for (int i = 0; i < DMP_SIGNATURE.length; i++) {
+            if (header[4 + i] != DMP_SIGNATURE[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static long grammarChecksum(File file, float lw, String toprule)
+        throws IOException
+    {
+        CRC32 crc = new CRC32();
+        InputStream stream = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int nread;
+            while ((nread = stream.read(buffer)) != -1)
+                crc.update(buffer, 0, nread);
+        } finally {
+            stream.close();
+        }
+        crc.update(format("%s %s", lw, toprule).getBytes());
+        return crc.getValue();
+    }
+  /**
+   * What audio capture does when the decoder falls behind and there is no
+   * space left in the capture buffer.
+   */
+  public enum OverrunPolicy {
+    /** Wait until the decoder consumes enough audio. */
+    BLOCK,
+    /** Discard the oldest buffered audio to make room. */
+    DROP_OLDEST,
+    /** Stop recognition and report an error to the listeners. */
+    ERROR
+  }
+
+  /**
+   * Source of time for the recognition thread.
+   */
+  public interface Clock {
+    /**
+     * Returns current time in milliseconds, only differences matter.
+     */
+    long currentTimeMillis();
+  }
+
+  public static final Clock SYSTEM_CLOCK = new Clock() {
+    @Override
+    public long currentTimeMillis() {
+      return System.currentTimeMillis();
+    }
+  };
+
+  public interface SoundSource {
+	    int read(short[] buffer, int offset, int length);
+	    boolean start();
+	    void stop();
+	    void release();
+	  }
+
+  /**
+   * Source that can write audio straight into a direct buffer.
+   */
+  public interface DirectSoundSource extends SoundSource {
+    /**
+     * Reads 16-bit samples in native byte order into the buffer starting at
+     * its first byte.
+     *
+     * @return number of bytes read or negative value on error
+     */
+    int read(ByteBuffer buffer, int sizeInBytes);
+  }
+
+	  class InputStreamSource implements SoundSource {
+	    private final InputStream stream;
+	    private boolean finished;
+	    // Reused between reads, grows only if a larger chunk is requested.
+	    private byte[] scratch = new byte[0];
+	    // Odd trailing byte of the previous read, -1 if none.
+	    private int pending = -1;
+
+	    InputStreamSource(InputStream stream) {
+	      this.stream = stream;
+	    }
+
+	    @Override
+	    public int read(short[] buffer, int offset, int length) {
+	      if (finished) {
+	        return -1;
+	      }
+
+	      try {
+	        int bytelength = 2 * length;
+	        if (scratch.length < bytelength)
+	          scratch = new byte[bytelength];
+	        int start = 0;
+	        if (pending >= 0) {
+	          scratch[start++] = (byte) pending;
+	          pending = -1;
+	        }
+	        int nread = stream.read(scratch, start, bytelength - start);
+	        if (nread == -1) {
+	          finished = true;
+	          return -1;
+	        }
+
+	        nread += start;
+	        int nsamples = nread / 2;
+	        if (nread % 2 != 0)
+	          pending = scratch[nread - 1] & 0xff;
+	        for (int i = 0; i < nsamples; i++) {
+	          buffer[offset + i] = (short)
+	              ((scratch[2 * i] & 0xff) | (scratch[2 * i + 1] << 8));
+	        }
+	        return nsamples;
+	      } catch (IOException e) {
+	        throw new IllegalStateException(e);
+	      }
+	    }
 
 	    @Override
 	    public boolean start() {
@@ -363,7 +1267,7 @@ public class SpeechRecognizer {
 	  // this can happen if it is not released from an earlier use.
 	  private static AudioRecordSource audioRecordSource;
 
-	  class AudioRecordSource implements SoundSource {
+	  class AudioRecordSource implements DirectSoundSource {
 	    AudioRecord recorder;
 	    AudioEffect suppressor;
 
@@ -372,6 +1276,11 @@ public class SpeechRecognizer {
 	      return recorder.read(buffer, offset, length);
 	    }
 
+	    @Override
+	    public int read(ByteBuffer buffer, int sizeInBytes) {
+	      return recorder.read(buffer, sizeInBytes);
+	    }
+
 	    @Override
 	    public boolean start() {
 	      synchronized (TAG) {
@@ -384,9 +1293,13 @@ public class SpeechRecognizer {
 	        }
 	        audioRecordSource = this;
 	      }
+	      int minSize = AudioRecord.getMinBufferSize(sampleRate,
+	          AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+	      int size = inputBufferSize > 0 ? inputBufferSize : INPUT_SIZE;
+	      size = Math.max(size, Math.max(minSize, 4 * getChunkSize()));
 	      recorder = new AudioRecord(AudioSource.VOICE_RECOGNITION,
 	          sampleRate, AudioFormat.CHANNEL_IN_MONO,
-	          AudioFormat.ENCODING_PCM_16BIT, INPUT_SIZE);
+	          AudioFormat.ENCODING_PCM_16BIT, size);
 	      if (Build.VERSION.SDK_INT >= 16) {
 	        if (NoiseSuppressor.isAvailable()) {
 	          suppressor = NoiseSuppressor.create(recorder.getAudioSessionId());
@@ -428,93 +1341,812 @@ public class SpeechRecognizer {
 	  }
 
 	  public void process(String searchName, InputStream stream) {
-		    decoder.setSearch(searchName);
-		    recognizerThread = new RecognizerThread(new InputStreamSource(stream));
-		    recognizerThread.start();
+		    start(searchName, new RecognizerThread(new InputStreamSource(stream), searchName));
 		  }
 
-}
+  /**
+   * Decodes a memory-mapped file as fast as possible. Unlike
+   * {@link #process(String, InputStream)} no wall-clock limits apply, the
+   * whole file is decoded as one utterance. Decoding time and real-time
+   * factor are available from the source once the final result is
+   * delivered.
+   *
+   * @throws IllegalArgumentException if the file sampling rate differs from
+   *         the decoder configuration
+   */
+  public void process(String searchName, MappedFileSource source) {
+    if (0 != source.getSampleRate() && source.getSampleRate() != sampleRate)
+      throw new IllegalArgumentException(format(
+          "%s has sampling rate %d, decoder expects %d",
+          source.getFile(), source.getSampleRate(), sampleRate));
+    start(searchName, new RecognizerThread(source, searchName));
+  }
+
+  /**
+   * Decodes replayed audio as one utterance. Unpaced replay is decoded as
+   * fast as possible like a mapped file, paced replay goes through the
+   * capture path like microphone input.
+   *
+   * @throws IllegalArgumentException if the replay sampling rate differs
+   *         from the decoder configuration
+   */
+  public void process(String searchName, ReplaySource source) {
+    if (source.getSampleRate() != sampleRate)
+      throw new IllegalArgumentException(format(
+          "replay has sampling rate %d, decoder expects %d",
+          source.getSampleRate(), sampleRate));
+    start(searchName, new RecognizerThread(source, searchName));
+  }
+
+  private void start(String searchName, RecognizerThread thread) {
+    if (!sharedDecoder.claim(thread))
+      throw new IllegalStateException("decoder is used by another recognizer");
+    try {
+      if (!isSearchPending(searchName))
+        decoder.setSearch(searchName);
+    } catch (RuntimeException e) {
+      sharedDecoder.unclaim(thread);
+      throw e;
+    }
+    this.searchName = searchName;
+    recognizerThread = thread;
+    recognizerThread.start();
+  }
+
+  /**
+   * Moves audio from a source into the decoder.
+   */
+  private interface AudioPipeline {
+    /**
+     * Starts reading from the source, which must be already started.
+     */
+    void begin();
+
+    /**
+     * Feeds the next chunk of audio to the decoder. Called on the decoding
+     * thread.
+     *
+     * @return number of samples decoded, 0 if interrupted while waiting,
+     *         -1 when the source is exhausted and everything is decoded
+     */
+    int decodeNext();
+
+    /**
+     * Stops reading and releases the source. Audio already read can still
+     * be decoded with {@link #decodeNext}.
+     */
+    void finish();
+
+    /**
+     * Whether the source delivers audio in real time. Wall-clock limits
+     * only apply to real-time sources.
+     */
+    boolean isRealTime();
+
+    /**
+     * Whether capture stopped because of a buffer overrun.
+     */
+    boolean isFailed();
+
+    long getOverrunCount();
+    long getDroppedSamples();
+    long getUnderrunCount();
+
+    /**
+     * Estimated capture to decoding latency.
+     */
+    long getLatencyMillis();
+  }
+
+  /**
+   * Reads audio from the source into a buffer so that capture is not
+   * delayed by decoding. The decoding side of the buffer is exposed through
+   * {@link #decodeNext}.
+   */
+  private abstract class CaptureThread extends Thread implements AudioPipeline {
+    protected final SoundSource source;
+    protected final OverrunPolicy policy;
+    protected final ChunkSizeController chunking;
+    // Null if all audio is decoded.
+    protected final VoiceActivityGate gate;
+    // Null if metrics are disabled.
+    protected final MetricsRecorder metrics = metricsRecorder;
+    // Null if recording is disabled.
+    protected final AudioRecorder recorder = activeRecorder;
+    private volatile boolean halted;
+    private volatile boolean failed;
+
+    CaptureThread(SoundSource source, OverrunPolicy policy, ChunkSizeController chunking,
+                  VoiceActivityGate gate) {
+      super("PocketSphinx capture");
+      this.source = source;
+      this.policy = policy;
+      this.chunking = chunking;
+      this.gate = gate;
+    }
+
+    @Override
+    public void begin() {
+      start();
+    }
+
+    @Override
+    public void finish() {
+      halted = true;
+      interrupt();
+
+      boolean interrupted = false;
+      while (isAlive()) {
+        try {
+          join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public boolean isRealTime() {
+      return true;
+    }
+
+    @Override
+    public boolean isFailed() {
+      return failed;
+    }
+
+    @Override
+    public long getLatencyMillis() {
+      return chunking.getLatencyMillis();
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (!halted && !isInterrupted()) {
+          int nread = capture(policy);
+          if (-1 == nread)
+            break;
+          if (-2 == nread) {
+            failed = policy == OverrunPolicy.ERROR;
+            break;
+          }
+        }
+
+        source.stop();
+        if (!failed)
+          capture(OverrunPolicy.DROP_OLDEST);
+        source.release();
+      } finally {
+        close();
+      }
+    }
+
+    /**
+     * Reads one chunk from the source into the buffer.
+     *
+     * @return number of samples read, -1 at the end of stream, -2 if the
+     *         buffer has no space
+     */
+    protected abstract int capture(OverrunPolicy policy);
+
+    protected abstract void close();
+  }
+
+  private final class RingCaptureThread extends CaptureThread {
+    private final PcmRingBuffer ring;
+    private final short[] captureBuffer;
+    private final short[] decodeBuffer;
+
+    RingCaptureThread(SoundSource source, PcmRingBuffer ring, OverrunPolicy policy,
+                      ChunkSizeController chunking, VoiceActivityGate gate) {
+      super(source, policy, chunking, gate);
+      this.ring = ring;
+      captureBuffer = new short[chunking.getMaxSize()];
+      decodeBuffer = new short[chunking.getMaxSize()];
+    }
+
+    @Override
+    protected int capture(OverrunPolicy policy) {
+      long start = null != metrics ? System.nanoTime() : 0;
+      int nread = source.read(captureBuffer, 0, chunking.getReadSize());
+      if (null != metrics)
+        metrics.onRead(System.nanoTime() - start);
+      if (nread > 0 && !ring.write(captureBuffer, 0, nread, policy))
+        return -2;
+      return nread;
+    }
+
+    @Override
+    protected void close() {
+      ring.close();
+    }
+
+    @Override
+    public int decodeNext() {
+      int nread = ring.read(decodeBuffer, 0, decodeBuffer.length);
+      if (nread > 0) {
+        long start = System.nanoTime();
+        if (null != gate)
+          gate.process(decoder, decodeBuffer, 0, nread);
+        else
+          decoder.processRaw(decodeBuffer, nread, false, false);
+        history.write(decodeBuffer, 0, nread);
+        long nanos = System.nanoTime() - start;
+        if (null != recorder)
+          recorder.write(decodeBuffer, 0, nread);
+        chunking.onDecoded(nread, nanos, ring.available());
+        if (null != metrics)
+          metrics.onProcess(nread, nanos, ring.available());
+
+        for (RecognitionListener listener : listenerSnapshot) {
+          listener.onRead(decodeBuffer, 0, nread);
+        }
+      }
+      return nread;
+    }
+
+    @Override
+    public long getOverrunCount() {
+      return ring.getOverrunCount();
+    }
+
+    @Override
+    public long getDroppedSamples() {
+      return ring.getDroppedSamples();
+    }
+
+    @Override
+    public long getUnderrunCount() {
+      return ring.getUnderrunCount();
+    }
+  }
+
+  /**
+   * Captures into direct buffers which are passed to the decoder without
+   * copying. {@link RecognitionListener#onRead} is not called in this mode.
+   */
+  private final class DirectCaptureThread extends CaptureThread {
+    private final DirectPcmQueue queue;
+
+    DirectCaptureThread(DirectSoundSource source, DirectPcmQueue queue, OverrunPolicy policy,
+                        ChunkSizeController chunking, VoiceActivityGate gate) {
+      super(source, policy, chunking, gate);
+      this.queue = queue;
+    }
+
+    @Override
+    protected int capture(OverrunPolicy policy) {
+      ByteBuffer chunk = queue.acquire(policy);
+      if (null == chunk)
+        return -2;
+      long start = null != metrics ? System.nanoTime() : 0;
+      int nbytes = ((DirectSoundSource) source).read(chunk, 2 * chunking.getReadSize());
+      if (null != metrics)
+        metrics.onRead(System.nanoTime() - start);
+      if (nbytes > 0)
+        queue.publish(nbytes / 2);
+      return nbytes > 0 ? nbytes / 2 : nbytes;
+    }
+
+    @Override
+    protected void close() {
+      queue.close();
+    }
+
+    @Override
+    public int decodeNext() {
+      int nsamp = queue.take();
+      if (nsamp > 0) {
+        long start = System.nanoTime();
+        try {
+          if (null != gate)
+            gate.process(decoder, queue.current(), nsamp);
+          else
+            decoder.processRawDirect(queue.current(), nsamp, false, false);
+          history.write(queue.current(), nsamp);
+          if (null != recorder)
+            recorder.write(queue.current(), nsamp);
+        } finally {
+          queue.release();
+        }
+        long nanos = System.nanoTime() - start;
+        int backlog = queue.queued() * chunking.getReadSize();
+        chunking.onDecoded(nsamp, nanos, backlog);
+        if (null != metrics)
+          metrics.onProcess(nsamp, nanos, backlog);
+      }
+      return nsamp;
+    }
+
+    @Override
+    public long getOverrunCount() {
+      return queue.getOverrunCount();
+    }
+
+    @Override
+    public long getDroppedSamples() {
+      return queue.getDroppedSamples();
+    }
+
+    @Override
+    public long getUnderrunCount() {
+      return queue.getUnderrunCount();
+    }
+  }
+
+  /**
+   * Decodes an offline source on the decoding thread as fast as possible,
+   * always in chunks of the same size so that runs are reproducible.
+   */
+  private final class OfflinePipeline implements AudioPipeline {
+    private final SoundSource source;
+    private final short[] buffer = new short[getChunkSize()];
+    private final boolean direct;
+    private final MetricsRecorder metrics = metricsRecorder;
+    private final AudioRecorder recorder = activeRecorder;
+
+    OfflinePipeline(SoundSource source) {
+      this.source = source;
+      direct = directAudio && source instanceof MappedFileSource
+          && ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN;
+    }
+
+    @Override
+    public void begin() {
+    }
+
+    @Override
+    public int decodeNext() {
+      if (direct) {
+        ByteBuffer chunk = ((MappedFileSource) source).nextChunk(buffer.length);
+        if (null == chunk)
+          return -1;
+        int nsamp = chunk.remaining() / 2;
+        long start = null != metrics ? System.nanoTime() : 0;
+        decoder.processRawDirect(chunk, nsamp, false, false);
+        if (null != metrics)
+          metrics.onProcess(nsamp, System.nanoTime() - start, 0);
+        if (null != recorder)
+          recorder.write(chunk, nsamp);
+        return nsamp;
+      }
+
+      int nread = source.read(buffer, 0, buffer.length);
+      if (nread > 0) {
+        long start = null != metrics ? System.nanoTime() : 0;
+        decoder.processRaw(buffer, nread, false, false);
+        if (null != metrics)
+          metrics.onProcess(nread, System.nanoTime() - start, 0);
+        if (null != recorder)
+          recorder.write(buffer, 0, nread);
+
+        for (RecognitionListener listener : listenerSnapshot) {
+          listener.onRead(buffer, 0, nread);
+        }
+      }
+      return nread;
+    }
+
+    @Override
+    public void finish() {
+      source.stop();
+      source.release();
+    }
+
+    @Override
+    public boolean isRealTime() {
+      return false;
+    }
+
+    @Override
+    public boolean isFailed() {
+      return false;
+    }
+
+    @Override
+    public long getOverrunCount() {
+      return 0;
+    }
+
+    @Override
+    public long getDroppedSamples() {
+      return 0;
+    }
+
+    @Override
+    public long getUnderrunCount() {
+      return 0;
+    }
+
+    @Override
+    public long getLatencyMillis() {
+      return 0;
+    }
+  }
+
   private final class RecognizerThread extends Thread {
     private SoundSource source;
+    private String searchName;
+    private final Clock clock = SpeechRecognizer.this.clock;
     private long startTime;
-    private boolean cancelled;
-    private boolean eosSent;
+    private volatile long samplesDecoded;
+    private boolean startedSpeaking;
+
+    private String switchTo;
+    private long switchPosition;
 
-    public RecognizerThread(SoundSource source) {
+    private AudioPipeline pipeline;
+    private MetricsRecorder metrics;
+    private AudioRecorder recorder;
+    private boolean realTime;
+    private volatile boolean cancelled;
+    private boolean eosSent;
+    // Set before start, utterances are split on end of speech.
+    private boolean continuous;
+
+    private boolean onlyOnChange;
+    private long minPartialInterval;
+    private boolean partialNbest;
+    private String lastHypstr;
+    private int lastScore;
+    private long lastPartialTime;
+    // Raw form of the last hypothesis checked, see partialChanged().
+    private final ByteBuffer hypBuffer =
+        ByteBuffer.allocateDirect(HYP_BUFFER_SIZE).order(ByteOrder.nativeOrder());
+    private final byte[] lastHypBytes = new byte[HYP_BUFFER_SIZE];
+    private int lastHypLength = -1;
+
+    public RecognizerThread(SoundSource source, String searchName) {
       this.source = source;
+      this.searchName = searchName;
+    }
+
+    /**
+     * Asks the decoding thread to switch search after the current chunk.
+     */
+    synchronized void requestSwitch(String name) {
+      switchTo = name;
+      switchPosition = samplesDecoded;
     }
 
     @Override
     public void run() {
+      try {
+        recognize();
+      } finally {
+        sharedDecoder.unclaim(this);
+      }
+    }
+
+    private void recognize() {
+      try {
+        // Lazily registered searches are loaded here, off the caller thread.
+        if (isSearchPending(searchName)) {
+          sharedDecoder.compilePendingSearch(this, searchName);
+          decoder.setSearch(searchName);
+        }
+      } catch (RuntimeException e) {
+        post(new OnErrorEvent(e));
+        return;
+      }
+
       if (!source.start()) {
-        mainHandler.post(new OnErrorEvent(
+        post(new OnErrorEvent(
         		new IOException(
                         "Failed to start recording. Microphone might be already in use.")));
         return;
       }
 
+      applyPartialResultPolicy();
+      dispatcher.resetStatistics();
+      UtteranceMetrics.Listener listener = metricsListener;
+      metrics = null != listener ? new MetricsRecorder() : null;
+      metricsRecorder = metrics;
+      recorder = audioRecorder;
+      if (null != recorder)
+        recorder.begin(sampleRate);
+      activeRecorder = recorder;
+      AudioPipeline capture = createPipeline(source);
+      pipeline = capture;
+      lastCapture = capture;
+      realTime = capture.isRealTime();
+      if (null != metrics)
+        metrics.begin(0, 0);
+
+      applyNgramMix();
       decoder.startUtt();
-      mainHandler.post(new StartEvent());
-      short[] buffer = new short[BUFFER_SIZE];
-      boolean startedSpeaking = false;
+      post(new StartEvent());
+      capture.begin();
 
-      startTime = System.currentTimeMillis();
+      startTime = clock.currentTimeMillis();
+      long startNanos = System.nanoTime();
       while (!interrupted() && !cancelled
-          && System.currentTimeMillis() - startTime < maxSpeechTimeMilis) {
-        int nread = source.read(buffer, 0, buffer.length);
+          && (!realTime || continuous || elapsedMillis() < maxSpeechTimeMilis)) {
+        int nread = capture.decodeNext();
+        if (realTime)
+          switchIfRequested();
 
         if (-1 == nread) {
           break;
         } else if (nread > 0) {
-          decoder.processRaw(buffer, nread, false, false);
-
-          RecognitionListener[] emptyArray = {};
-          for (RecognitionListener listener : listeners.toArray(emptyArray)) {
-            listener.onRead(buffer, 0, nread);
-          }
+          samplesDecoded += nread;
 
           if (decoder.getInSpeech() && !startedSpeaking) {
             startedSpeaking = true;
-            System.out.println("Started speaking");
-            mainHandler.post(new InSpeechChangeEvent(true));
+            if (DEBUG_MSGS_ALLOWED) Log.i(TAG, "Started speaking");
+            post(new InSpeechChangeEvent(true));
+          }
+          if (!decoder.getInSpeech() && startedSpeaking && null != metrics)
+            metrics.onEndOfSpeech();
+          if (!decoder.getInSpeech() && startedSpeaking && continuous) {
+            startedSpeaking = false;
+            nextUtterance();
+            continue;
           }
           if (!decoder.getInSpeech() && startedSpeaking) {
             // Speaker is silent now.
-            if (System.currentTimeMillis() - startTime > minSpeechTimeMilis) {
+            if (elapsedMillis() > minSpeechTimeMilis) {
               if (!eosSent) {
                 eosSent = true;
-                System.out.println("Stopped speaking");
-                mainHandler.post(new InSpeechChangeEvent(false));
+                if (DEBUG_MSGS_ALLOWED) Log.i(TAG, "Stopped speaking");
+                post(new InSpeechChangeEvent(false));
               }
             }
           }
-          
-          final Hypothesis hypothesis = decoder.hyp();
-          final NBestList nbestList = decoder.nbest();
-          if (null != hypothesis)
-            mainHandler.post(new ResultEvent(hypothesis, false,nbestList));
+
+          postPartialResult();
         }
       }
 
-      source.stop();
-      int nread = source.read(buffer, 0, buffer.length);
-      source.release();
-      if (nread > 0) {
-        decoder.processRaw(buffer, nread, false, false);
+      // Stop capture and decode whatever is still buffered.
+      if (null != metrics)
+        metrics.onEndOfSpeech();
+      capture.finish();
+      if (!cancelled && realTime) {
+        while (capture.decodeNext() > 0)
+          ;
       }
       decoder.endUtt();
-      
 
-      // Remove all pending notifications.
-      mainHandler.removeCallbacksAndMessages(null);
+      if (capture.isFailed()) {
+        post(new OnErrorEvent(new IOException(format(
+            "Audio buffer overrun, %d samples dropped",
+            capture.getDroppedSamples()))));
+      }
+      if (DEBUG_MSGS_ALLOWED && capture.getOverrunCount() > 0) {
+        Log.i(TAG, format("%d overruns, %d samples dropped, %d underruns",
+            capture.getOverrunCount(), capture.getDroppedSamples(),
+            capture.getUnderrunCount()));
+      }
+      VoiceActivityGate gate = voiceGate;
+      if (DEBUG_MSGS_ALLOWED && null != gate && realTime) {
+        Log.i(TAG, format("Voice gate duty cycle %.2f, saved about %d ms of decoding",
+            gate.getDutyCycle(), gate.getEstimatedSavedMillis()));
+      }
+
+      // Pending partial results are superseded by the final one.
+      dispatcher.clearDroppable();
       if (!cancelled) {
-        final Hypothesis hypothesis = decoder.hyp();
-        final NBestList nbestList = decoder.nbest();
+        final Hypothesis hypothesis = hyp();
+        final NBestList nbestList = nbest();
+        if (source instanceof MappedFileSource)
+          reportDecodingTime((MappedFileSource) source, System.nanoTime() - startNanos);
         if (null != hypothesis) {
-          mainHandler.post(new ResultEvent(hypothesis, true,nbestList));
+          post(obtainResultEvent(hypothesis, true,nbestList));
         } else {
-          mainHandler.post(new ResultEvent(null, true,nbestList));
+          post(obtainResultEvent(null, true,nbestList));
         }
+        utteranceFinished();
+      }
+      metricsRecorder = null;
+      activeRecorder = null;
+    }
+
+    private Hypothesis hyp() {
+      if (null == metrics)
+        return decoder.hyp();
+      long start = System.nanoTime();
+      Hypothesis hypothesis = decoder.hyp();
+      metrics.onHyp(System.nanoTime() - start);
+      return hypothesis;
+    }
+
+    private NBestList nbest() {
+      if (null == metrics)
+        return decoder.nbest();
+      long start = System.nanoTime();
+      NBestList nbestList = decoder.nbest();
+      metrics.onNbest(System.nanoTime() - start);
+      return nbestList;
+    }
+
+    /**
+     * Reports metrics and queues recording of the utterance whose final
+     * result was just posted, and starts collecting for the next one.
+     */
+    private void utteranceFinished() {
+      if (null != recorder)
+        recorder.endUtterance(searchName);
+      if (null == metrics)
+        return;
+      UtteranceMetrics result = metrics.finish(searchName, sampleRate,
+          pipeline.getOverrunCount(), pipeline.getDroppedSamples());
+      lastMetrics = result;
+      if (DEBUG_MSGS_ALLOWED)
+        Log.i(TAG, result.toString());
+      UtteranceMetrics.Listener listener = metricsListener;
+      if (null != listener)
+        listener.onUtteranceMetrics(result);
+      metrics.begin(pipeline.getOverrunCount(), pipeline.getDroppedSamples());
+    }
+
+    /**
+     * Activates models of the mix set for the current search. Changing the
+     * selection or weights of a loaded set is cheap, so it is done for
+     * every utterance.
+     */
+    private void applyNgramMix() {
+      AppliedMix applied;
+      synchronized (ngramSets) {
+        applied = ngramMixes.get(searchName);
+      }
+      if (null == applied || isSearchPending(searchName))
+        return;
+      int result = applied.mix.isInterpolated()
+          ? decoder.lmSetInterp(searchName, applied.weights)
+          : decoder.lmSetSelect(searchName, applied.mix.getSelected());
+      if (result < 0)
+        Log.w(TAG, format("Failed to apply N-gram mix to %s", searchName));
+    }
+
+    private void applyPartialResultPolicy() {
+      PartialResultPolicy policy = getPartialResultPolicy(searchName);
+      onlyOnChange = policy.isOnlyOnChange();
+      minPartialInterval = policy.getMinIntervalMillis();
+      partialNbest = policy.isPartialNbest();
+      lastHypstr = null;
+      lastHypLength = -1;
+      lastPartialTime = 0;
+    }
+
+    /**
+     * Performs a switch requested with {@link #switchSearch}: finishes the
+     * utterance, activates the new search and replays recent audio into it.
+     * If the search cannot be activated the old one continues.
+     */
+    private void switchIfRequested() {
+      String name;
+      long position;
+      synchronized (this) {
+        name = switchTo;
+        position = switchPosition;
+        switchTo = null;
+      }
+      if (null == name)
+        return;
+
+      if (startedSpeaking)
+        post(new InSpeechChangeEvent(false));
+      if (null != metrics)
+        metrics.onEndOfSpeech();
+      decoder.endUtt();
+      post(obtainResultEvent(hyp(), true, nbest()));
+      utteranceFinished();
+
+      try {
+        sharedDecoder.compilePendingSearch(this, name);
+        decoder.setSearch(name);
+        searchName = name;
+        SpeechRecognizer.this.searchName = name;
+      } catch (RuntimeException e) {
+        post(new OnErrorEvent(e));
+      }
+      applyPartialResultPolicy();
+      startedSpeaking = false;
+      eosSent = false;
+      startTime = clock.currentTimeMillis();
+
+      applyNgramMix();
+      decoder.startUtt();
+      long replay = samplesDecoded - position + (long) sampleRate * switchReplayMillis / 1000;
+      short[] buffer = new short[(int) Math.min(replay, history.capacity())];
+      int n = history.readLast(buffer, buffer.length);
+      if (n > 0)
+        decoder.processRaw(buffer, n, false, false);
+    }
+
+    /**
+     * Finishes the current utterance of a continuous session, delivers its
+     * result and starts the next one. Capture keeps running meanwhile.
+     */
+    private void nextUtterance() {
+      post(new InSpeechChangeEvent(false));
+      decoder.endUtt();
+      Hypothesis hypothesis = hyp();
+      NBestList nbestList = nbest();
+      post(obtainResultEvent(hypothesis, true, nbestList));
+      utteranceFinished();
+
+      applyNgramMix();
+      decoder.startUtt();
+      lastHypstr = null;
+      lastHypLength = -1;
+      lastPartialTime = 0;
+    }
+
+    /**
+     * Posts current hypothesis unless the partial result policy suppresses
+     * it. Only emitted hypotheses are remembered, so a change held back by
+     * the rate limit is delivered once the interval passes.
+     */
+    private void postPartialResult() {
+      long now = clock.currentTimeMillis();
+      if (now - lastPartialTime < minPartialInterval)
+        return;
+
+      if (onlyOnChange && !partialChanged())
+        return;
+
+      final Hypothesis hypothesis = hyp();
+      if (null == hypothesis)
+        return;
+
+      String hypstr = hypothesis.getHypstr();
+      int score = hypothesis.getBestScore();
+      if (onlyOnChange && score == lastScore && hypstr.equals(lastHypstr))
+        return;
+
+      lastHypstr = hypstr;
+      lastScore = score;
+      lastPartialTime = now;
+      final NBestList nbestList = partialNbest ? nbest() : null;
+      post(obtainResultEvent(hypothesis, false,nbestList));
+    }
+
+    /**
+     * Compares the raw hypothesis and score with the last ones checked,
+     * which unlike {@link #hyp} creates no objects. Chunks that do not
+     * change the hypothesis therefore allocate nothing, only a partial
+     * result that is delivered does.
+     */
+    private boolean partialChanged() {
+      long start = null != metrics ? System.nanoTime() : 0;
+      int length = decoder.hypDirect(hypBuffer);
+      if (null != metrics)
+        metrics.onHyp(System.nanoTime() - start);
+      if (length < 0)
+        return true; // Too long to compare, let the string decide.
+      if (length == lastHypLength) {
+        int i = 0;
+        while (i < length && hypBuffer.get(i) == lastHypBytes[i])
+          i++;
+        if (i == length)
+          return false;
+      }
+      for (int i = 0; i < length; i++)
+        lastHypBytes[i] = hypBuffer.get(i);
+      lastHypLength = length;
+      return 0 != length;
+    }
+
+    /**
+     * Time since the start of recognition. Offline sources are measured in
+     * decoded audio instead of wall-clock time.
+     */
+    private long elapsedMillis() {
+      if (realTime || sampleRate <= 0)
+        return clock.currentTimeMillis() - startTime;
+      return samplesDecoded * 1000 / sampleRate;
+    }
+
+    private void reportDecodingTime(MappedFileSource file, long nanos) {
+      file.setDecodingTime(nanos, sampleRate);
+      if (DEBUG_MSGS_ALLOWED) {
+        Log.i(TAG, format("Decoded %s in %d ms, RTF %.3f", file.getFile(),
+            file.getDecodingTimeMillis(), file.getRealTimeFactor()));
       }
     }
   }
@@ -526,11 +2158,29 @@ public class SpeechRecognizer {
     }
   }
 
-  private abstract class RecognitionEvent implements Runnable {
+  private abstract class RecognitionEvent implements EventDispatcher.Event {
       public void run() {
-          RecognitionListener[] emptyArray = new RecognitionListener[0];
-          for (RecognitionListener listener : listeners.toArray(emptyArray))
+          for (RecognitionListener listener : listenerSnapshot)
               execute(listener);
+          recycle();
+      }
+
+      public boolean isCoalescible() {
+          return false;
+      }
+
+      public boolean isDroppable() {
+          return false;
+      }
+
+      public void discard() {
+          recycle();
+      }
+
+      /**
+       * Called after delivery, pooled events return themselves to the pool.
+       */
+      protected void recycle() {
       }
 
       protected abstract void execute(RecognitionListener listener);
@@ -552,15 +2202,41 @@ public class SpeechRecognizer {
       }
   }
 
+  private ResultEvent obtainResultEvent(Hypothesis hypothesis,
+                                        boolean finalResult,
+                                        NBestList nbestList) {
+      ResultEvent event = null;
+      synchronized (resultPool) {
+          if (resultPoolSize > 0) {
+              event = resultPool[--resultPoolSize];
+              resultPool[resultPoolSize] = null;
+          }
+      }
+      if (null == event)
+          event = new ResultEvent();
+      event.hypothesis = hypothesis;
+      event.finalResult = finalResult;
+      event.nbestList = nbestList;
+      return event;
+  }
+
+  /**
+   * Result notification. Instances are pooled and return to the pool after
+   * delivery or when the dispatcher discards them.
+   */
   private class ResultEvent extends RecognitionEvent {
-      protected final Hypothesis hypothesis;
-      private final boolean finalResult;
-      protected final NBestList nbestList;
+      protected Hypothesis hypothesis;
+      private boolean finalResult;
+      protected NBestList nbestList;
+
+      @Override
+      public boolean isCoalescible() {
+          return !finalResult;
+      }
 
-      ResultEvent(Hypothesis hypothesis, boolean finalResult, NBestList nbestList) {
-          this.hypothesis = hypothesis;
-          this.finalResult = finalResult;
-          this.nbestList = nbestList;
+      @Override
+      public boolean isDroppable() {
+          return !finalResult;
       }
 
       @Override
@@ -570,6 +2246,16 @@ public class SpeechRecognizer {
           else
               listener.onPartialResult(hypothesis,nbestList);
       }
+
+      @Override
+      protected void recycle() {
+          hypothesis = null;
+          nbestList = null;
+          synchronized (resultPool) {
+              if (resultPoolSize < resultPool.length)
+                  resultPool[resultPoolSize++] = this;
+          }
+      }
   }
 
   private class OnErrorEvent extends RecognitionEvent {
@@ -584,4 +2270,4 @@ public class SpeechRecognizer {
           listener.onError(exception);
       }
   }
-
+}
@@ -4,7 +4,20 @@ import static edu.cmu.pocketsphinx.Decoder.defaultConfig;
 import static edu.cmu.pocketsphinx.Decoder.fileConfig;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
+import android.content.Context;
 
 public class SpeechRecognizerSetup {
 
@@ -12,13 +25,28 @@ public class SpeechRecognizerSetup {
         System.loadLibrary("pocketsphinx_jni");
     }
 
+    // Arguments naming files that the decoder loads into memory.
+    private static final Set<String> MODEL_ARGUMENTS = new HashSet<String>(Arrays.asList(
+        "-hmm", "-mdef", "-mean", "-var", "-tmat", "-mixw", "-sendump",
+        "-featparams", "-lda", "-mllr", "-dict", "-fdict", "-lm", "-lmctl",
+        "-jsgf", "-fsg", "-kws", "-allphone"));
+
     private final Config config;
+    private SharedDecoder sharedDecoder;
+    // Everything that went into the configuration, used as the cache key.
+    private final String origin;
+    private final Map<String, String> settings = new TreeMap<String, String>();
+
+    // Recognizer settings, not part of the decoder configuration.
+    private int chunkSize;
+    private int inputBufferSize;
+    private boolean adaptiveBuffering;
 
     /**
      * Creates new speech recognizer builder with default configuration.
      */
     public static SpeechRecognizerSetup defaultSetup() {
-        return new SpeechRecognizerSetup(defaultConfig());
+        return new SpeechRecognizerSetup(defaultConfig(), "default");
     }
 
     /**
@@ -28,54 +56,286 @@ public class SpeechRecognizerSetup {
      * @param configFile configuration file
      */
     public static SpeechRecognizerSetup setupFromFile(File configFile) {
-        return new SpeechRecognizerSetup(fileConfig(configFile.getPath()));
+        return new SpeechRecognizerSetup(fileConfig(configFile.getPath()),
+                                         configFile.getAbsolutePath() + "@"
+                                         + configFile.lastModified());
     }
 
-    private SpeechRecognizerSetup(Config config) {
+    private SpeechRecognizerSetup(Config config, String origin) {
         this.config = config;
+        this.origin = origin;
     }
 
     public SpeechRecognizer getRecognizer() {
-        return new SpeechRecognizer(config);
+        return configure(new SpeechRecognizer(config));
+    }
+
+    /**
+     * Creates recognizer sharing the decoder with other recognizers created
+     * by this method. The acoustic model, dictionary and mdef are loaded only
+     * for the first one, so a wake-word recognizer and a command recognizer
+     * cost as much memory and startup time as one. Each recognizer activates
+     * its own search, search names are common to all of them.
+     *
+     * <p>The decoder processes one utterance at a time, so a recognizer
+     * claims it exclusively while listening. Starting another recognizer of
+     * the group meanwhile fails: a wake-word recognizer and a command
+     * recognizer take turns, they cannot listen at the same time. Hand over
+     * by stopping one before starting the other, or keep one recognizer and
+     * move between searches with {@link SpeechRecognizer#switchSearch}. To
+     * run searches on the same audio simultaneously use
+     * {@link #getMultiSearchRecognizer}, which loads a decoder per search.
+     *
+     * <p>The decoder is deleted when all recognizers sharing it are
+     * {@link SpeechRecognizer#shutdown shut down}, after that this method
+     * loads a fresh one.
+     */
+    public synchronized SpeechRecognizer getSharedRecognizer() {
+        if (null == sharedDecoder || !sharedDecoder.retain())
+            sharedDecoder = new SharedDecoder(new Decoder(config));
+        return configure(new SpeechRecognizer(config, sharedDecoder));
+    }
+
+    /**
+     * Creates recognizer using a decoder from the process-wide
+     * {@link DecoderCache}. If a decoder with the same configuration was
+     * created before and is still cached it is reused and the call returns
+     * almost immediately, otherwise the decoder is loaded and cached.
+     * Recognizers obtained this way share the decoder like
+     * {@link #getSharedRecognizer}.
+     */
+    public SpeechRecognizer getCachedRecognizer() {
+        String key;
+        synchronized (this) {
+            key = getCacheKey();
+        }
+        SharedDecoder decoder = DecoderCache.getInstance()
+            .acquire(key, config, estimateModelSize());
+        return configure(new SpeechRecognizer(config, decoder));
+    }
+
+    private synchronized SpeechRecognizer configure(SpeechRecognizer recognizer) {
+        recognizer.setChunkSize(chunkSize);
+        recognizer.setInputBufferSize(inputBufferSize);
+        recognizer.setAdaptiveBuffering(adaptiveBuffering);
+        return recognizer;
+    }
+
+    /**
+     * Creates cached recognizer on the given executor, so that the model is
+     * loaded in background.
+     *
+     * @see #getCachedRecognizer
+     */
+    public Future<SpeechRecognizer> getRecognizerAsync(Executor executor) {
+        FutureTask<SpeechRecognizer> task = new FutureTask<SpeechRecognizer>(
+            new Callable<SpeechRecognizer>() {
+                public SpeechRecognizer call() {
+                    return getCachedRecognizer();
+                }
+            });
+        executor.execute(task);
+        return task;
+    }
+
+    private String getCacheKey() {
+        StringBuilder key = new StringBuilder(origin);
+        for (Map.Entry<String, String> entry : settings.entrySet())
+            key.append('\n').append(entry.getKey()).append('=').append(entry.getValue());
+        return key.toString();
+    }
+
+    /**
+     * Estimates memory used by the decoder as the total size of the model
+     * files and directories in the configuration. Other paths, such as log
+     * directories, do not take memory.
+     */
+    private synchronized long estimateModelSize() {
+        long size = 0;
+        for (Map.Entry<String, String> entry : settings.entrySet()) {
+            if (MODEL_ARGUMENTS.contains(entry.getKey()))
+                size += sizeOf(new File(entry.getValue()));
+        }
+        return size;
+    }
+
+    private static long sizeOf(File file) {
+        if (file.isFile())
+            return file.length();
+        long size = 0;
+        File[] children = file.listFiles();
+        if (null != children) {
+            for (File child : children)
+                size += sizeOf(child);
+        }
+        return size;
+    }
+
+    /**
+     * Creates batch recognizer with one decoder per available processor.
+     */
+    public BatchRecognizer getBatchRecognizer() {
+        return getBatchRecognizer(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates batch recognizer for parallel offline recognition.
+     *
+     * @param poolSize maximal number of decoders working in parallel
+     */
+    public BatchRecognizer getBatchRecognizer(int poolSize) {
+        return new BatchRecognizer(config, poolSize);
+    }
+
+    /**
+     * Creates recognizer running several searches on the same audio at the
+     * same time.
+     */
+    public MultiSearchRecognizer getMultiSearchRecognizer() {
+        return new MultiSearchRecognizer(config);
     }
 
     public SpeechRecognizerSetup setAcousticModel(File model) {
         return setString("-hmm", model.getPath());
     }
 
+    /**
+     * Loads acoustic model directly from uncompressed APK assets.
+     *
+     * @param path asset directory of the model
+     * @throws IOException if the assets are compressed
+     * @see Assets#mapAssets
+     */
+    public SpeechRecognizerSetup setAcousticModelFromAssets(Context context, String path)
+        throws IOException
+    {
+        setBoolean("-mmap", false);
+        return setAcousticModel(Assets.mapAssets(context, path));
+    }
+
     public SpeechRecognizerSetup setDictionary(File dictionary) {
         return setString("-dict", dictionary.getPath());
     }
 
+    /**
+     * Uses the words of a compiled dictionary that the searches need,
+     * including words added to its overlay. The subset is written as a text
+     * dictionary into the directory, so the decoder does not parse the
+     * whole dictionary. Words of the vocabulary missing from the dictionary
+     * are left out.
+     *
+     * @param vocabulary words of the grammars, keyphrases and language
+     *                   models that will be used
+     * @param dir        directory for the subset dictionary
+     */
+    public SpeechRecognizerSetup setDictionary(BinaryDictionary dictionary,
+                                               Collection<String> vocabulary, File dir)
+        throws IOException
+    {
+        Set<String> words = new LinkedHashSet<String>(vocabulary);
+        words.addAll(dictionary.getOverlay().keySet());
+        dir.mkdirs();
+        File subset = new File(dir, dictionary.getFile().getName() + ".subset.dict");
+        dictionary.writeSubset(words, subset);
+        return setDictionary(subset);
+    }
+
+    /**
+     * Loads dictionary directly from an uncompressed APK asset.
+     *
+     * @throws IOException if the asset is compressed
+     * @see Assets#mapAssets
+     */
+    public SpeechRecognizerSetup setDictionaryFromAssets(Context context, String path)
+        throws IOException
+    {
+        return setDictionary(Assets.mapAssets(context, path));
+    }
+
     public SpeechRecognizerSetup setSampleRate(int rate) {
         return setFloat("-samprate", rate);
     }
 
+    /**
+     * Makes the decoder write raw audio of every utterance to the directory.
+     * Files are written synchronously while decoding, see
+     * {@link AudioRecorder} for recording in the background.
+     */
     public SpeechRecognizerSetup setRawLogDir(File dir) {
         return setString("-rawlogdir", dir.getPath());
     }
 
+    /**
+     * Sets how many samples recognizers read from the microphone at once.
+     *
+     * @param samples read size, 0 for 128 ms of audio
+     * @see SpeechRecognizer#setChunkSize
+     */
+    public synchronized SpeechRecognizerSetup setAudioChunkSize(int samples) {
+        if (samples < 0)
+            throw new IllegalArgumentException("chunk size must not be negative");
+        chunkSize = samples;
+        return this;
+    }
+
+    /**
+     * Sets the size of the recorder buffer in bytes, 0 for the default.
+     *
+     * @see SpeechRecognizer#setInputBufferSize
+     */
+    public synchronized SpeechRecognizerSetup setInputBufferSize(int bytes) {
+        inputBufferSize = bytes;
+        return this;
+    }
+
+    /**
+     * Lets recognizers adapt the read size to the decoding load.
+     *
+     * @see SpeechRecognizer#setAdaptiveBuffering
+     */
+    public synchronized SpeechRecognizerSetup setAdaptiveBuffering(boolean adaptive) {
+        adaptiveBuffering = adaptive;
+        return this;
+    }
+
     public SpeechRecognizerSetup setKeywordThreshold(float threshold) {
         return setFloat("-kws_threshold", threshold);
     }
 
-    public SpeechRecognizerSetup setBoolean(String key, boolean value) {
+    public synchronized SpeechRecognizerSetup setBoolean(String key, boolean value) {
         config.setBoolean(key, value);
+        settings.put(key, String.valueOf(value));
         return this;
     }
 
-    public SpeechRecognizerSetup setInteger(String key, int value) {
+    public synchronized SpeechRecognizerSetup setInteger(String key, int value) {
         config.setInt(key, value);
+        settings.put(key, String.valueOf(value));
         return this;
     }
 
-    public SpeechRecognizerSetup setFloat(String key, float value) {
+    public synchronized SpeechRecognizerSetup setFloat(String key, float value) {
         config.setFloat(key, value);
+        settings.put(key, String.valueOf(value));
         return this;
     }
 
-    public SpeechRecognizerSetup setString(String key, String value) {
+    public synchronized SpeechRecognizerSetup setString(String key, String value) {
         config.setString(key, value);
+        settings.put(key, normalize(value));
         return this;
     }
+
+    /**
+     * Makes relative paths absolute so that equal configurations produce
+     * equal cache keys.
+     */
+    private static String normalize(String value) {
+        if (null == value)
+            return "";
+        File file = new File(value);
+        if (file.isAbsolute() || !file.exists())
+            return value;
+        return file.getAbsolutePath();
+    }
 }
\ No newline at end of file
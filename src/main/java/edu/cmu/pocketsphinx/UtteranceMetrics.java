@@ -0,0 +1,193 @@
+package edu.cmu.pocketsphinx;
+
+/**
+ * Performance figures of a single utterance. Collected only when a
+ * {@link Listener} is set with {@link SpeechRecognizer#setMetricsListener},
+ * otherwise the recognizer does not measure anything.
+ */
+public final class UtteranceMetrics {
+
+    /**
+     * Receives metrics after every utterance. Called on the recognition
+     * thread, must not block.
+     */
+    public interface Listener {
+        void onUtteranceMetrics(UtteranceMetrics metrics);
+    }
+
+    private static final long[] PROCESS_BOUNDS_MICROS = {
+        250, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000
+    };
+
+    private final String searchName;
+    private final long audioMillis;
+    private final long decodingNanos;
+    private final long endOfSpeechToResultNanos;
+    private final long[] processHistogram;
+    private final int processCount;
+    private final long hypNanos;
+    private final int hypCount;
+    private final long nbestNanos;
+    private final int nbestCount;
+    private final long readBlockedNanos;
+    private final int maxQueueDepth;
+    private final long overruns;
+    private final long droppedSamples;
+
+    UtteranceMetrics(String searchName, long audioMillis, long decodingNanos,
+                     long endOfSpeechToResultNanos, long[] processHistogram,
+                     int processCount, long hypNanos, int hypCount,
+                     long nbestNanos, int nbestCount, long readBlockedNanos,
+                     int maxQueueDepth, long overruns, long droppedSamples)
+    {
+        this.searchName = searchName;
+        this.audioMillis = audioMillis;
+        this.decodingNanos = decodingNanos;
+        this.endOfSpeechToResultNanos = endOfSpeechToResultNanos;
+        this.processHistogram = processHistogram;
+        this.processCount = processCount;
+        this.hypNanos = hypNanos;
+        this.hypCount = hypCount;
+        this.nbestNanos = nbestNanos;
+        this.nbestCount = nbestCount;
+        this.readBlockedNanos = readBlockedNanos;
+        this.maxQueueDepth = maxQueueDepth;
+        this.overruns = overruns;
+        this.droppedSamples = droppedSamples;
+    }
+
+    /**
+     * Returns upper bounds of the process time histogram buckets in
+     * microseconds. The last bucket has no upper bound.
+     */
+    public static long[] getProcessHistogramBounds() {
+        return PROCESS_BOUNDS_MICROS.clone();
+    }
+
+    static int bucketOf(long nanos) {
+        long micros = nanos / 1000;
+        int i = 0;
+        while (i < PROCESS_BOUNDS_MICROS.length && micros > PROCESS_BOUNDS_MICROS[i])
+            i++;
+        return i;
+    }
+
+    static int bucketCount() {
+        return PROCESS_BOUNDS_MICROS.length + 1;
+    }
+
+    public String getSearchName() {
+        return searchName;
+    }
+
+    /**
+     * Duration of the decoded audio.
+     */
+    public long getAudioMillis() {
+        return audioMillis;
+    }
+
+    /**
+     * Time spent in the decoder processing audio.
+     */
+    public long getDecodingMillis() {
+        return decodingNanos / 1000000;
+    }
+
+    /**
+     * Ratio of decoding time to audio duration.
+     */
+    public double getRealTimeFactor() {
+        return 0 == audioMillis ? 0 : decodingNanos / 1e6 / audioMillis;
+    }
+
+    /**
+     * Time from detection of the end of speech, or the stop request, to the
+     * final result being handed over for delivery. -1 if there was no end of
+     * speech.
+     */
+    public long getEndOfSpeechToResultMillis() {
+        return endOfSpeechToResultNanos < 0 ? -1 : endOfSpeechToResultNanos / 1000000;
+    }
+
+    /**
+     * Returns number of decoder calls per process time bucket.
+     *
+     * @see #getProcessHistogramBounds
+     */
+    public long[] getProcessHistogram() {
+        return processHistogram.clone();
+    }
+
+    public int getProcessCount() {
+        return processCount;
+    }
+
+    /**
+     * Returns upper bound of the bucket containing the given percentile of
+     * decoder calls, or -1 if the percentile falls in the last bucket.
+     *
+     * @param percentile value between 0 and 100
+     */
+    public long getProcessPercentileMicros(double percentile) {
+        long rank = (long) Math.ceil(percentile / 100 * processCount);
+        long seen = 0;
+        for (int i = 0; i < processHistogram.length; i++) {
+            seen += processHistogram[i];
+            if (seen >= rank && seen > 0)
+                return i < PROCESS_BOUNDS_MICROS.length ? PROCESS_BOUNDS_MICROS[i] : -1;
+        }
+        return 0;
+    }
+
+    /**
+     * Average cost of retrieving a hypothesis in microseconds.
+     */
+    public long getAverageHypMicros() {
+        return 0 == hypCount ? 0 : hypNanos / hypCount / 1000;
+    }
+
+    /**
+     * Average cost of computing an n-best list in microseconds.
+     */
+    public long getAverageNbestMicros() {
+        return 0 == nbestCount ? 0 : nbestNanos / nbestCount / 1000;
+    }
+
+    /**
+     * Time capture spent waiting for the audio source.
+     */
+    public long getReadBlockedMillis() {
+        return readBlockedNanos / 1000000;
+    }
+
+    /**
+     * Largest amount of audio waiting to be decoded, in samples.
+     */
+    public int getMaxQueueDepth() {
+        return maxQueueDepth;
+    }
+
+    public long getOverrunCount() {
+        return overruns;
+    }
+
+    public long getDroppedSamples() {
+        return droppedSamples;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "%s: %d ms audio, RTF %.3f, EOS to result %d ms, p50 %d us, "
+            + "p95 %d us, hyp %d us, nbest %d us, read blocked %d ms, "
+            + "max queue %d, %d overruns, %d dropped",
+            searchName, audioMillis, getRealTimeFactor(),
+            getEndOfSpeechToResultMillis(), getProcessPercentileMicros(50),
+            getProcessPercentileMicros(95), getAverageHypMicros(),
+            getAverageNbestMicros(), getReadBlockedMillis(), maxQueueDepth,
+            overruns, droppedSamples);
+    }
+}
+
+/* vim: set ts=4 sw=4: */
@@ -0,0 +1,304 @@
+package edu.cmu.pocketsphinx;
+
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.util.Arrays;
+
+/**
+ * Lightweight voice activity detector in front of the decoder. Audio is
+ * examined in 10 ms frames by energy and zero-crossing rate, and while
+ * nothing but background noise is heard it is kept in a short pre-roll
+ * buffer instead of being decoded. On speech onset the pre-roll is decoded
+ * first, so the decoder sees the beginning of the word, and the gate stays
+ * open until silence lasts longer than the hangover.
+ *
+ * <p>The gate is assigned with {@link SpeechRecognizer#setVoiceActivityGate}
+ * and keeps statistics of the last recognition, so a gate must not be
+ * shared between recognizers.
+ */
+public class VoiceActivityGate {
+
+    // Lowest noise floor in dB, keeps digital silence from opening the gate.
+    private static final double MIN_FLOOR = 20;
+    private static final double FLOOR_ADAPTATION = 0.05;
+
+    private double thresholdDb = 12;
+    private double zeroCrossingRate = 0.25;
+    private int preRollMillis = 300;
+    private int hangoverMillis = 1000;
+
+    // Decoding thread state.
+    private short[] preRoll = new short[0];
+    private int preRollStart;
+    private int preRollLength;
+    private int frameSize;
+    private int hangoverSamples;
+    private int silentSamples;
+    private double noiseFloor;
+    private boolean open;
+    // Views of the buffers passed to process, created once per buffer.
+    private short[] viewedArray;
+    private ShortBuffer arrayView;
+    private ByteBuffer[] viewedDirect = new ByteBuffer[0];
+    private ShortBuffer[] directViews = new ShortBuffer[0];
+    private short[] scratch = new short[0];
+
+    private volatile long passedSamples;
+    private volatile long skippedSamples;
+    private volatile long decodingNanos;
+
+    /**
+     * Sets how much louder than the background noise a frame has to be to
+     * count as speech.
+     */
+    public VoiceActivityGate setThreshold(double decibels) {
+        this.thresholdDb = decibels;
+        return this;
+    }
+
+    /**
+     * Sets zero-crossing rate, as a fraction of samples, above which quiet
+     * frames with half the energy threshold count as speech. Catches
+     * unvoiced onsets such as fricatives.
+     */
+    public VoiceActivityGate setZeroCrossingRate(double rate) {
+        this.zeroCrossingRate = rate;
+        return this;
+    }
+
+    /**
+     * Sets how much audio before the onset is passed to the decoder.
+     */
+    public VoiceActivityGate setPreRoll(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("pre-roll must not be negative");
+        this.preRollMillis = millis;
+        return this;
+    }
+
+    /**
+     * Sets how long silence is still decoded after speech. Must be longer
+     * than the silence the decoder needs to detect the end of speech.
+     */
+    public VoiceActivityGate setHangover(int millis) {
+        if (millis < 0)
+            throw new IllegalArgumentException("hangover must not be negative");
+        this.hangoverMillis = millis;
+        return this;
+    }
+
+    /**
+     * Fraction of captured audio passed to the decoder during the last
+     * recognition.
+     */
+    public double getDutyCycle() {
+        long passed = passedSamples;
+        long total = passed + skippedSamples;
+        return 0 == total ? 1 : (double) passed / total;
+    }
+
+    public long getPassedSamples() {
+        return passedSamples;
+    }
+
+    public long getSkippedSamples() {
+        return skippedSamples;
+    }
+
+    /**
+     * Decoding time saved during the last recognition, estimated from the
+     * time the decoder spent per passed sample.
+     */
+    public long getEstimatedSavedMillis() {
+        long passed = passedSamples;
+        if (0 == passed)
+            return 0;
+        return (long) ((double) decodingNanos / passed * skippedSamples / 1000000);
+    }
+
+    /**
+     * Prepares the gate for a new recognition.
+     */
+    void reset(int sampleRate) {
+        int size = sampleRate * preRollMillis / 1000;
+        if (preRoll.length != size)
+            preRoll = new short[size];
+        preRollStart = 0;
+        preRollLength = 0;
+        frameSize = Math.max(1, sampleRate / 100);
+        hangoverSamples = sampleRate * hangoverMillis / 1000;
+        silentSamples = 0;
+        noiseFloor = 0;
+        open = false;
+        // Capture buffers may change between recognitions.
+        viewedArray = null;
+        arrayView = null;
+        viewedDirect = new ByteBuffer[0];
+        directViews = new ShortBuffer[0];
+        passedSamples = 0;
+        skippedSamples = 0;
+        decodingNanos = 0;
+    }
+
+    /**
+     * Decodes the chunk if it belongs to speech, otherwise keeps it as
+     * pre-roll.
+     */
+    void process(Decoder decoder, short[] buffer, int offset, int length) {
+        if (buffer != viewedArray) {
+            viewedArray = buffer;
+            arrayView = ShortBuffer.wrap(buffer);
+        }
+        ShortBuffer samples = arrayView;
+        samples.limit(offset + length).position(offset);
+        if (!update(samples)) {
+            keep(samples);
+            return;
+        }
+        long start = System.nanoTime();
+        flush(decoder);
+        decoder.processRaw(offset == 0 ? buffer : copy(buffer, offset, length),
+                           length, false, false);
+        passed(length, start);
+    }
+
+    /**
+     * Same as {@link #process(Decoder, short[], int, int)} for a direct
+     * buffer in native order, which is decoded in place.
+     */
+    void process(Decoder decoder, ByteBuffer buffer, int length) {
+        ShortBuffer samples = directView(buffer);
+        samples.limit(length).position(0);
+        if (!update(samples)) {
+            keep(samples);
+            return;
+        }
+        long start = System.nanoTime();
+        flush(decoder);
+        decoder.processRawDirect(buffer, length, false, false);
+        passed(length, start);
+    }
+
+    private void passed(int length, long start) {
+        decodingNanos += System.nanoTime() - start;
+        passedSamples += length;
+    }
+
+    /**
+     * Returns view of the whole direct buffer. Capture cycles through a
+     * few buffers, their views are kept until the next reset.
+     */
+    private ShortBuffer directView(ByteBuffer buffer) {
+        for (int i = 0; i < viewedDirect.length; i++) {
+            if (viewedDirect[i] == buffer)
+                return directViews[i];
+        }
+        int n = viewedDirect.length;
+        viewedDirect = Arrays.copyOf(viewedDirect, n + 1);
+        directViews = Arrays.copyOf(directViews, n + 1);
+        ByteBuffer whole = buffer.duplicate().order(buffer.order());
+        whole.clear();
+        viewedDirect[n] = buffer;
+        directViews[n] = whole.asShortBuffer();
+        return directViews[n];
+    }
+
+    /**
+     * Copies samples to the start of a reused array, the decoder only
+     * takes arrays from their first element.
+     */
+    private short[] copy(short[] buffer, int offset, int length) {
+        if (scratch.length < length)
+            scratch = new short[length];
+        System.arraycopy(buffer, offset, scratch, 0, length);
+        return scratch;
+    }
+
+    /**
+     * Runs the detector over the chunk.
+     *
+     * @return whether the chunk should be decoded
+     */
+    private boolean update(ShortBuffer samples) {
+        boolean speech = false;
+        int base = samples.position();
+        int length = samples.remaining();
+        for (int pos = 0; pos < length; pos += frameSize) {
+            int end = Math.min(length, pos + frameSize);
+            double energy = 0;
+            int crossings = 0;
+            short prev = samples.get(base + pos);
+            for (int i = pos; i < end; i++) {
+                short s = samples.get(base + i);
+                energy += (double) s * s;
+                if ((s ^ prev) < 0)
+                    crossings++;
+                prev = s;
+            }
+            int n = end - pos;
+            double db = 10 * Math.log10(energy / n + 1);
+            // The first frame calibrates the background level.
+            if (0 == noiseFloor)
+                noiseFloor = Math.max(MIN_FLOOR, db);
+            boolean frameSpeech = db > noiseFloor + thresholdDb
+                || (db > noiseFloor + thresholdDb / 2
+                    && (double) crossings / n > zeroCrossingRate);
+
+            if (frameSpeech) {
+                speech = true;
+                silentSamples = 0;
+            } else {
+                silentSamples += n;
+                // Follow the background level only outside of speech.
+                noiseFloor = Math.max(MIN_FLOOR,
+                    noiseFloor + FLOOR_ADAPTATION * (db - noiseFloor));
+            }
+        }
+
+        boolean decode = speech || open;
+        open = speech || (open && silentSamples < hangoverSamples);
+        return decode;
+    }
+
+    private void keep(ShortBuffer samples) {
+        int length = samples.remaining();
+        skippedSamples += length;
+        int capacity = preRoll.length;
+        if (0 == capacity)
+            return;
+        if (length >= capacity) {
+            samples.position(samples.position() + length - capacity);
+            samples.get(preRoll, 0, capacity);
+            preRollStart = 0;
+            preRollLength = capacity;
+            return;
+        }
+        int end = (preRollStart + preRollLength) % capacity;
+        int first = Math.min(length, capacity - end);
+        samples.get(preRoll, end, first);
+        samples.get(preRoll, 0, length - first);
+        int total = preRollLength + length;
+        if (total > capacity) {
+            preRollStart = (preRollStart + total - capacity) % capacity;
+            preRollLength = capacity;
+        } else {
+            preRollLength = total;
+        }
+    }
+
+    private void flush(Decoder decoder) {
+        if (0 == preRollLength)
+            return;
+        // Pre-roll was counted as skipped, move it to passed.
+        skippedSamples -= preRollLength;
+        passedSamples += preRollLength;
+        int first = Math.min(preRollLength, preRoll.length - preRollStart);
+        decoder.processRaw(copy(preRoll, preRollStart, first), first, false, false);
+        if (first < preRollLength)
+            decoder.processRaw(preRoll, preRollLength - first, false, false);
+        preRollStart = 0;
+        preRollLength = 0;
+    }
+}
+
+/* vim: set ts=4 sw=4: */
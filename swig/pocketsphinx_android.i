@@ -0,0 +1,614 @@
+/* -*- c-basic-offset:4; indent-tabs-mode: nil -*- */
+/* ====================================================================
+ * Copyright (c) 2014 Alpha Cephei Inc.  All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions
+ * are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright
+ *    notice, this list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright
+ *    notice, this list of conditions and the following disclaimer in
+ *    the documentation and/or other materials provided with the
+ *    distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY ALPHA CEPHEI INC. ``AS IS'' AND
+ * ANY EXPRESSED OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO,
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL CARNEGIE MELLON UNIVERSITY
+ * NOR ITS EMPLOYEES BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL,
+ * SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT
+ * LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE,
+ * DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY
+ * THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT
+ * (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ *
+ * ====================================================================
+ */
+
+/*
+ * Android specific additions to the pocketsphinx module. The upstream
+ * interface is included unchanged, extensions below are appended to the
+ * generated Decoder class.
+ */
+
+%include "pocketsphinx.i"
+
+/*
+ * Direct NIO buffers are passed to native code by address. The capacity
+ * travels along so that the wrapper can validate the requested length.
+ */
+%typemap(jni) (const void *DIRECT_BUFFER, size_t DIRECT_CAPACITY) "jobject"
+%typemap(jtype) (const void *DIRECT_BUFFER, size_t DIRECT_CAPACITY) "java.nio.ByteBuffer"
+%typemap(jstype) (const void *DIRECT_BUFFER, size_t DIRECT_CAPACITY) "java.nio.ByteBuffer"
+%typemap(javain) (const void *DIRECT_BUFFER, size_t DIRECT_CAPACITY) "$javainput"
+%typemap(in) (const void *DIRECT_BUFFER, size_t DIRECT_CAPACITY) {
+    $1 = (*jenv)->GetDirectBufferAddress(jenv, $input);
+    if ($1 == NULL) {
+        SWIG_JavaThrowException(jenv, SWIG_JavaIllegalArgumentException,
+                                "direct buffer expected");
+        return $null;
+    }
+    $2 = (size_t)(*jenv)->GetDirectBufferCapacity(jenv, $input);
+}
+
+%extend Decoder {
+    /*
+     * Same as process_raw but reads samples straight from a direct buffer
+     * starting at its first byte. Returns -1 if the buffer is too small.
+     */
+    int process_raw_direct(const void *DIRECT_BUFFER, size_t DIRECT_CAPACITY,
+                           size_t nsamp, bool no_search, bool full_utt) {
+        if (nsamp * sizeof(int16) > DIRECT_CAPACITY)
+            return -1;
+        return ps_process_raw($self, (int16 const *)DIRECT_BUFFER, nsamp,
+                              no_search, full_utt);
+    }
+}
+
+%newobject Decoder::compile_jsgf;
+
+%extend Decoder {
+    /*
+     * Compiles JSGF file into FSG the same way ps_set_jsgf_file does, using
+     * -toprule or the first public rule and -lw from the decoder
+     * configuration. The result can be saved with FsgModel.writefile and
+     * loaded back without parsing the grammar. Returns NULL on error.
+     */
+    FsgModel * compile_jsgf(const char *path) {
+        cmd_ln_t *config = ps_get_config($self);
+        char const *toprule = cmd_ln_str_r(config, "-toprule");
+        float lw = cmd_ln_float32_r(config, "-lw");
+        jsgf_rule_t *rule = NULL;
+        fsg_model_t *fsg;
+        jsgf_t *jsgf;
+
+        if ((jsgf = jsgf_parse_file(path, NULL)) == NULL)
+            return NULL;
+
+        if (toprule) {
+            rule = jsgf_get_rule(jsgf, toprule);
+        } else {
+            jsgf_rule_iter_t *itor;
+            for (itor = jsgf_rule_iter(jsgf); itor;
+                 itor = jsgf_rule_iter_next(itor)) {
+                rule = jsgf_rule_iter_rule(itor);
+                if (jsgf_rule_public(rule)) {
+                    jsgf_rule_iter_free(itor);
+                    break;
+                }
+                rule = NULL;
+            }
+        }
+        if (rule == NULL) {
+            jsgf_grammar_free(jsgf);
+            return NULL;
+        }
+
+        fsg = jsgf_build_fsg(jsgf, rule, ps_get_logmath($self), lw);
+        jsgf_grammar_free(jsgf);
+        return fsg;
+    }
+}
+
+/*
+ * Writable direct buffer, same convention as DIRECT_BUFFER above.
+ */
+%typemap(jni) (void *OUT_BUFFER, size_t OUT_CAPACITY) "jobject"
+%typemap(jtype) (void *OUT_BUFFER, size_t OUT_CAPACITY) "java.nio.ByteBuffer"
+%typemap(jstype) (void *OUT_BUFFER, size_t OUT_CAPACITY) "java.nio.ByteBuffer"
+%typemap(javain) (void *OUT_BUFFER, size_t OUT_CAPACITY) "$javainput"
+%typemap(in) (void *OUT_BUFFER, size_t OUT_CAPACITY) {
+    $1 = (*jenv)->GetDirectBufferAddress(jenv, $input);
+    if ($1 == NULL) {
+        SWIG_JavaThrowException(jenv, SWIG_JavaIllegalArgumentException,
+                                "direct buffer expected");
+        return $null;
+    }
+    $2 = (size_t)(*jenv)->GetDirectBufferCapacity(jenv, $input);
+}
+
+/*
+ * Standalone front end computing cepstra once, so that they can be decoded
+ * by several decoders with process_cep_direct. Cepstra are stored as
+ * consecutive frames of mfcc_t, frame_bytes each.
+ */
+%{
+#include <sphinxbase/fe.h>
+
+typedef struct frontend_s {
+    fe_t *fe;
+    int ncep;
+} FrontEnd;
+
+/* Row pointers into a contiguous cepstra buffer. */
+static mfcc_t **
+cep_rows(void *buffer, int nframes, int ncep)
+{
+    mfcc_t **rows;
+    int i;
+
+    if ((rows = malloc(nframes * sizeof(*rows))) == NULL)
+        return NULL;
+    for (i = 0; i < nframes; i++)
+        rows[i] = (mfcc_t *)buffer + (size_t)i * ncep;
+    return rows;
+}
+%}
+
+typedef struct {} FrontEnd;
+
+%extend FrontEnd {
+    /* Creates front end with the feature parameters of the configuration. */
+    FrontEnd(Config *config) {
+        FrontEnd *frontend = calloc(1, sizeof(*frontend));
+        if (frontend == NULL)
+            return NULL;
+        if ((frontend->fe = fe_init_auto_r(config)) == NULL) {
+            free(frontend);
+            return NULL;
+        }
+        frontend->ncep = fe_get_output_size(frontend->fe);
+        return frontend;
+    }
+
+    ~FrontEnd() {
+        fe_free($self->fe);
+        free($self);
+    }
+
+    int frame_bytes() {
+        return $self->ncep * sizeof(mfcc_t);
+    }
+
+    int start_utt() {
+        return fe_start_utt($self->fe);
+    }
+
+    /*
+     * Computes cepstra of nsamp 16-bit samples from a direct buffer and
+     * writes complete frames into the output buffer. Returns number of
+     * frames written or -1 on error, including a too small output buffer.
+     */
+    int process_direct(const void *DIRECT_BUFFER, size_t DIRECT_CAPACITY,
+                       size_t nsamp, void *OUT_BUFFER, size_t OUT_CAPACITY) {
+        int16 const *spch = (int16 const *)DIRECT_BUFFER;
+        int32 nframes = 0, maxframes, total = 0;
+        mfcc_t **rows;
+
+        if (nsamp * sizeof(int16) > DIRECT_CAPACITY)
+            return -1;
+        maxframes = OUT_CAPACITY / ($self->ncep * sizeof(mfcc_t));
+        if (fe_process_frames($self->fe, NULL, &nsamp, NULL, &nframes, NULL) < 0)
+            return -1;
+        if (nframes > maxframes)
+            return -1;
+        if ((rows = cep_rows(OUT_BUFFER, maxframes, $self->ncep)) == NULL)
+            return -1;
+        while (nsamp > 0) {
+            nframes = maxframes - total;
+            if (fe_process_frames($self->fe, &spch, &nsamp, rows + total,
+                                  &nframes, NULL) < 0) {
+                free(rows);
+                return -1;
+            }
+            total += nframes;
+            if (nframes == 0 && nsamp > 0)
+                break;
+        }
+        free(rows);
+        return total;
+    }
+
+    /*
+     * Flushes the last partial frame. Returns number of frames written,
+     * 0 or 1, or -1 on error.
+     */
+    int end_utt(void *OUT_BUFFER, size_t OUT_CAPACITY) {
+        mfcc_t *cep;
+        int32 nframes = 0;
+
+        if (OUT_CAPACITY < $self->ncep * sizeof(mfcc_t))
+            return -1;
+        cep = (mfcc_t *)OUT_BUFFER;
+        if (fe_end_utt($self->fe, cep, &nframes) < 0)
+            return -1;
+        return nframes;
+    }
+}
+
+%extend Decoder {
+    /*
+     * Decodes nframes frames of cepstra computed by FrontEnd. Cepstral mean
+     * normalization and dynamic features are still computed by the decoder.
+     */
+    int process_cep_direct(const void *DIRECT_BUFFER, size_t DIRECT_CAPACITY,
+                           int nframes, bool no_search, bool full_utt) {
+        int ncep = fe_get_output_size(ps_get_fe($self));
+        mfcc_t **rows;
+        int result;
+
+        if (nframes < 0 || (size_t)nframes * ncep * sizeof(mfcc_t) > DIRECT_CAPACITY)
+            return -1;
+        if (nframes == 0)
+            return 0;
+        if ((rows = cep_rows((void *)DIRECT_BUFFER, nframes, ncep)) == NULL)
+            return -1;
+        result = ps_process_cep($self, rows, nframes, no_search, full_utt);
+        free(rows);
+        return result;
+    }
+}
+
+/*
+ * Models stored uncompressed in the APK. Java registers every asset file
+ * under a virtual path together with the APK descriptor, offset and
+ * length. The native library is linked with --wrap=fopen, so when sphinxbase
+ * opens a registered path it reads the mapped APK region instead of a file
+ * extracted to storage. Directories are registered with fd -1, opening them
+ * only succeeds for the existence checks the decoder does on model paths.
+ */
+%{
+#include <errno.h>
+#include <limits.h>
+#include <pthread.h>
+#include <stdlib.h>
+#include <string.h>
+#include <unistd.h>
+#include <sys/mman.h>
+
+typedef struct asset_region_s {
+    char *path;
+    int fd;
+    long long offset;
+    long long length;
+    struct asset_region_s *next;
+} asset_region_t;
+
+typedef struct asset_stream_s {
+    void *map;
+    size_t map_length;
+    const char *data;
+    size_t length;
+    size_t pos;
+} asset_stream_t;
+
+static asset_region_t *asset_regions;
+static pthread_mutex_t asset_mutex = PTHREAD_MUTEX_INITIALIZER;
+
+FILE *__real_fopen(const char *path, const char *mode);
+
+static int
+asset_read(void *cookie, char *buf, int n)
+{
+    asset_stream_t *s = cookie;
+    size_t left = s->length - s->pos;
+    if ((size_t)n > left)
+        n = (int)left;
+    memcpy(buf, s->data + s->pos, n);
+    s->pos += n;
+    return n;
+}
+
+static long long
+asset_seek_to(asset_stream_t *s, long long offset, int whence)
+{
+    long long pos;
+    switch (whence) {
+    case SEEK_SET: pos = offset; break;
+    case SEEK_CUR: pos = (long long)s->pos + offset; break;
+    case SEEK_END: pos = (long long)s->length + offset; break;
+    default: errno = EINVAL; return -1;
+    }
+    if (pos < 0 || pos > (long long)s->length) {
+        errno = EINVAL;
+        return -1;
+    }
+    s->pos = (size_t)pos;
+    return pos;
+}
+
+/*
+ * Bionic provides BSD funopen, glibc only fopencookie. The latter is used
+ * when the library is built for the host to run benchmarks.
+ */
+#ifdef __GLIBC__
+static ssize_t
+asset_cookie_read(void *cookie, char *buf, size_t n)
+{
+    return asset_read(cookie, buf, n > INT_MAX ? INT_MAX : (int)n);
+}
+
+static int
+asset_cookie_seek(void *cookie, off64_t *offset, int whence)
+{
+    long long pos = asset_seek_to(cookie, *offset, whence);
+    if (pos < 0)
+        return -1;
+    *offset = pos;
+    return 0;
+}
+#else
+static fpos_t
+asset_seek(void *cookie, fpos_t offset, int whence)
+{
+    return (fpos_t)asset_seek_to(cookie, offset, whence);
+}
+#endif
+
+static int
+asset_close(void *cookie)
+{
+    asset_stream_t *s = cookie;
+    if (s->map)
+        munmap(s->map, s->map_length);
+    free(s);
+    return 0;
+}
+
+static FILE *
+asset_open(asset_region_t *region)
+{
+    asset_stream_t *s = calloc(1, sizeof(*s));
+    if (s == NULL)
+        return NULL;
+    if (region->fd >= 0 && region->length > 0) {
+        long page = sysconf(_SC_PAGESIZE);
+        long long delta = region->offset % page;
+        s->map_length = (size_t)(region->length + delta);
+        s->map = mmap(NULL, s->map_length, PROT_READ, MAP_PRIVATE,
+                      region->fd, (off_t)(region->offset - delta));
+        if (s->map == MAP_FAILED) {
+            free(s);
+            return NULL;
+        }
+        s->data = (const char *)s->map + delta;
+        s->length = (size_t)region->length;
+    }
+#ifdef __GLIBC__
+    {
+        cookie_io_functions_t io = {
+            asset_cookie_read, NULL, asset_cookie_seek, asset_close
+        };
+        return fopencookie(s, "r", io);
+    }
+#else
+    return funopen(s, asset_read, NULL, asset_seek, asset_close);
+#endif
+}
+
+FILE *
+__wrap_fopen(const char *path, const char *mode)
+{
+    asset_region_t *region = NULL;
+    FILE *fh = NULL;
+
+    if (path && mode && mode[0] == 'r' && asset_regions) {
+        pthread_mutex_lock(&asset_mutex);
+        for (region = asset_regions; region; region = region->next)
+            if (strcmp(region->path, path) == 0)
+                break;
+        /* Mapped under the lock, registration may replace the descriptor. */
+        if (region)
+            fh = asset_open(region);
+        pthread_mutex_unlock(&asset_mutex);
+    }
+    if (region)
+        return fh;
+    return __real_fopen(path, mode);
+}
+%}
+
+%inline %{
+/*
+ * Registers APK region under a virtual path. The descriptor is duplicated,
+ * the caller may close its own. Registering a path again replaces its
+ * region and closes the previous duplicate. Returns 0 on success, -1 on
+ * error.
+ */
+int register_asset(const char *path, int fd, long long offset, long long length)
+{
+    asset_region_t *region, *existing;
+    int old_fd = -1;
+
+    if (path == NULL || offset < 0 || length < 0)
+        return -1;
+    if ((region = calloc(1, sizeof(*region))) == NULL)
+        return -1;
+    if ((region->path = strdup(path)) == NULL) {
+        free(region);
+        return -1;
+    }
+    region->fd = fd >= 0 ? dup(fd) : -1;
+    if (fd >= 0 && region->fd < 0) {
+        free(region->path);
+        free(region);
+        return -1;
+    }
+    region->offset = offset;
+    region->length = length;
+
+    pthread_mutex_lock(&asset_mutex);
+    for (existing = asset_regions; existing; existing = existing->next)
+        if (strcmp(existing->path, path) == 0)
+            break;
+    if (existing) {
+        old_fd = existing->fd;
+        existing->fd = region->fd;
+        existing->offset = offset;
+        existing->length = length;
+    } else {
+        region->next = asset_regions;
+        asset_regions = region;
+    }
+    pthread_mutex_unlock(&asset_mutex);
+
+    if (existing) {
+        /* Streams already open keep their own mapping. */
+        if (old_fd >= 0)
+            close(old_fd);
+        free(region->path);
+        free(region);
+    }
+    return 0;
+}
+%}
+
+/*
+ * N-gram models in DMP format. ngram_model_read tries to parse any file as
+ * ARPA text before DMP, which reads a whole binary model for nothing, so
+ * binary models are loaded by type. With -mmap the DMP tables are mapped
+ * from the file instead of being read into memory.
+ */
+%extend Decoder {
+    /*
+     * Adds N-gram search with a model in DMP format. Returns -1 if the
+     * model cannot be read.
+     */
+    int set_lm_dmp(const char *name, const char *path) {
+        ngram_model_t *lm;
+        int result;
+
+        lm = ngram_model_read(ps_get_config($self), path, NGRAM_DMP,
+                              ps_get_logmath($self));
+        if (lm == NULL)
+            return -1;
+        result = ps_set_lm($self, name, lm);
+        ngram_model_free(lm);
+        return result;
+    }
+
+    /*
+     * Converts N-gram model of any supported format to DMP. Returns -1 if
+     * the model cannot be read or written.
+     */
+    int convert_lm(const char *from, const char *to) {
+        ngram_model_t *lm;
+        int result;
+
+        lm = ngram_model_read(ps_get_config($self), from, NGRAM_AUTO,
+                              ps_get_logmath($self));
+        if (lm == NULL)
+            return -1;
+        result = ngram_model_write(lm, to, NGRAM_DMP);
+        ngram_model_free(lm);
+        return result;
+    }
+}
+
+/*
+ * Sets of N-gram models sharing one search. The set maps words of all
+ * models to common ids, so selecting a model or changing interpolation
+ * weights between utterances only changes how the search is scored. The
+ * lm_set functions taking a search name expect a search created from a
+ * set made with new_lm_set.
+ */
+%newobject Decoder::read_lm;
+%newobject Decoder::new_lm_set;
+
+%extend Decoder {
+    /*
+     * Reads N-gram model, DMP models by type. Returns NULL on error.
+     */
+    NGramModel * read_lm(const char *path, bool dmp) {
+        return ngram_model_read(ps_get_config($self), path,
+                                dmp ? NGRAM_DMP : NGRAM_AUTO,
+                                ps_get_logmath($self));
+    }
+
+    /*
+     * Creates set holding the model under the given name. The set keeps
+     * its own reference to the model.
+     */
+    NGramModel * new_lm_set(NGramModel *lm, const char *lmname) {
+        char *name = (char *)lmname;
+        return ngram_model_set_init(ps_get_config($self), &lm, &name, NULL, 1);
+    }
+
+    /*
+     * Adds model to a set that is not used by a search yet. Like
+     * new_lm_set the set keeps its own reference, ngram_model_set_add
+     * takes over the one it is given. Returns -1 on error.
+     */
+    int lm_set_add(NGramModel *set, NGramModel *lm, const char *lmname) {
+        ngram_model_retain(lm);
+        if (ngram_model_set_add(set, lm, lmname, 1.0, FALSE) == NULL) {
+            ngram_model_free(lm);
+            return -1;
+        }
+        return 0;
+    }
+
+    /*
+     * Scores search with a single model of its set. Returns -1 if there is
+     * no such model.
+     */
+    int lm_set_select(const char *name, const char *lmname) {
+        ngram_model_t *set = ps_get_lm($self, name);
+        if (set == NULL)
+            return -1;
+        return ngram_model_set_select(set, lmname) ? 0 : -1;
+    }
+
+    /*
+     * Interpolates models of the search set with weights given as floats
+     * in the order the models were added. Returns -1 on error.
+     */
+    int lm_set_interp(const char *name, const void *DIRECT_BUFFER,
+                      size_t DIRECT_CAPACITY) {
+        ngram_model_t *set = ps_get_lm($self, name);
+        if (set == NULL)
+            return -1;
+        if ((size_t)ngram_model_set_count(set) * sizeof(float32) > DIRECT_CAPACITY)
+            return -1;
+        return ngram_model_set_interp(set, NULL, (const float32 *)DIRECT_BUFFER)
+            ? 0 : -1;
+    }
+}
+
+%extend Decoder {
+    /*
+     * Writes the current hypothesis as its 32-bit best score in native
+     * byte order followed by the hypothesis string without terminator, so
+     * that the caller can tell whether it changed without creating any
+     * objects. Returns number of bytes written, 0 if there is no
+     * hypothesis and -1 if the buffer is too small.
+     */
+    int hyp_direct(void *OUT_BUFFER, size_t OUT_CAPACITY) {
+        int32 score;
+        char const *hyp = ps_get_hyp($self, &score);
+        size_t len;
+
+        if (hyp == NULL)
+            return 0;
+        len = strlen(hyp);
+        if (sizeof(score) + len > OUT_CAPACITY)
+            return -1;
+        memcpy(OUT_BUFFER, &score, sizeof(score));
+        memcpy((char *)OUT_BUFFER + sizeof(score), hyp, len);
+        return (int)(sizeof(score) + len);
+    }
+}